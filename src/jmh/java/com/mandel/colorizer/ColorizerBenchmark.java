@@ -0,0 +1,58 @@
+package com.mandel.colorizer;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+* ColorizerBenchmark -- Cost of coloring a value, directly or through a palette.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorizerBenchmark {
+
+    private static final int ITERATIONS = 1000;
+
+    private GradientColorizer colorizer;
+    private int[] palette;
+    private int i = 0;
+
+    @Setup
+    public void setUp() {
+        this.colorizer = new GradientColorizer(Color.decode("#000000"), Color.decode("#ffd000"));
+        this.palette = this.colorizer.getPalette(ITERATIONS);
+    }
+
+    @Benchmark
+    public Color getColor() {
+        this.i = (this.i + 1) % ITERATIONS;
+        return this.colorizer.getColor((float)this.i / ITERATIONS);
+    }
+
+    @Benchmark
+    public int paletteLookup() {
+        this.i = (this.i + 1) % ITERATIONS;
+        float val = (float)this.i / ITERATIONS;
+        return this.palette[(int)(val * (this.palette.length - 1) + 0.5)];
+    }
+
+    @Benchmark
+    public int[] getPalette() {
+        return this.colorizer.getPalette(ITERATIONS);
+    }
+}
@@ -0,0 +1,45 @@
+package com.mandel.parser;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+* ParserBenchmark -- Cost of parsing and reducing formulas.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"z^2+c", "-i*c*z^5+1+i", "(1+2*i)^3*z^2+c/(z-1)+3!", "((z^2+c)^2+c)^2+c"})
+    public String formula;
+
+    @Benchmark
+    public BaseNode parse() {
+        return AST.parse(this.formula);
+    }
+
+    @Benchmark
+    public BaseNode parseAndReduce() {
+        return AST.parse(this.formula).reduce();
+    }
+
+    @Benchmark
+    public BaseNode parseReduceAndOptimize() {
+        return Optimizer.optimize(AST.parse(this.formula).reduce());
+    }
+}
@@ -0,0 +1,75 @@
+package com.mandel.plotter;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.colorizer.ColorizerBuilder;
+import com.mandel.sets.BaseSet;
+import com.mandel.sets.SetBuilder;
+
+
+/**
+* PlotBenchmark -- Cost of computing a whole plot, without writing it.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PlotBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"lines", SubdivisionTask.ID})
+    public String strategy;
+
+    @Param({"mandelbrot", "julia"})
+    public String set;
+
+    // 750x500 pixels
+    private static final double RESOLUTION = 250;
+
+    private BaseSet fractal;
+    private PlotArea area;
+    private Colorizer colorizer;
+    private int width, height;
+
+    @Setup
+    public void setUp() {
+        this.fractal = SetBuilder.build(this.set, "", "", 500);
+        this.fractal.setPeriodicity(BaseSet.DEFAULT_PERIODICITY);
+        this.area = this.fractal.getDefaultArea();
+        this.colorizer = ColorizerBuilder.parse("#000000..#ffffff");
+        this.width = (int)Math.floor(this.area.getWidth() * RESOLUTION);
+        this.height = (int)Math.floor(this.area.getHeight() * RESOLUTION);
+    }
+
+    @Benchmark
+    public BufferedImage plot() {
+        BufferedImage img = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        PlotTask task = this.strategy.equals(SubdivisionTask.ID)
+                            ? new SubdivisionTask(this.fractal, this.area, this.colorizer, img, this.height, this.width)
+                            : new PlotTask(this.fractal, this.area, this.colorizer, img, this.height, this.width);
+        List<String> errs = task.startParallel(this.threads);
+        if (!errs.isEmpty()) {
+            throw new IllegalStateException(errs.get(0));
+        }
+        return img;
+    }
+}
@@ -0,0 +1,83 @@
+package com.mandel.plotter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mandel.colorizer.ColorizerBuilder;
+import com.mandel.sets.BaseSet;
+import com.mandel.sets.SetBuilder;
+
+
+/**
+* PngBenchmark -- Cost of encoding a plot as PNG, output being discarded.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PngBenchmark {
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private int[] pixels;
+    private int width, height;
+
+    /**
+    * Discard -- An output stream counting and dropping bytes.
+    */
+    private static class Discard extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.count += len;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 200);
+        PlotArea area = set.getDefaultArea();
+        this.width = 1500;
+        this.height = 1000;
+        BufferedImage img = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        new PlotTask(set, area, ColorizerBuilder.parse("#000000..#ffd000"), img, this.height, this.width)
+            .startParallel(Runtime.getRuntime().availableProcessors());
+        this.pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        Discard out = new Discard();
+        PngWriter writer = new PngWriter(out, this.width, this.height, this.level);
+        writer.writeImage(this.pixels, this.threads);
+        writer.close();
+        return out.count;
+    }
+}
@@ -0,0 +1,85 @@
+package com.mandel.sets;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+* SetBenchmark -- Cost of BaseSet.contains for points in and out of the sets.
+*
+* Interior points avoid the shortcuts (main cardioid, period-2 bulb) so
+* that they are only caught by periodicity checking, or iterated to the end.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetBenchmark {
+
+    @Param({"80", "1000"})
+    public int iterations;
+
+    @Param({"on", "off"})
+    public String periodicity;
+
+    // Built-in transformation, or the same one through the formula compiler
+    @Param({"", "z^2+c"})
+    public String transformation;
+
+    private BaseSet mandelbrot, julia;
+    private final double[] line = new double[256];
+    private final float[] values = new float[256];
+
+    @Setup
+    public void setUp() {
+        this.mandelbrot = SetBuilder.build(MandelbrotSet.ID, this.transformation, "", this.iterations);
+        this.julia = SetBuilder.build(JuliaSet.ID, this.transformation, "-0.4;0.6", this.iterations);
+        double tolerance = this.periodicity.equals("on") ? BaseSet.DEFAULT_PERIODICITY : 0;
+        this.mandelbrot.setPeriodicity(tolerance);
+        this.julia.setPeriodicity(tolerance);
+        for (int k = 0; k < this.line.length; k++) {
+            this.line[k] = -2 + 2.5 * k / this.line.length;
+        }
+    }
+
+    @Benchmark
+    public float mandelbrotInterior() {
+        // In the period-3 bulb
+        return this.mandelbrot.contains(-0.122, 0.745);
+    }
+
+    @Benchmark
+    public float mandelbrotExterior() {
+        // Close to the boundary, escaping after a few dozen iterations
+        return this.mandelbrot.contains(-0.75, 0.05);
+    }
+
+    @Benchmark
+    public float juliaInterior() {
+        return this.julia.contains(0, 0);
+    }
+
+    @Benchmark
+    public float juliaExterior() {
+        return this.julia.contains(0.5, 0.5);
+    }
+
+    @Benchmark
+    public float[] mandelbrotLine() {
+        this.mandelbrot.containsLine(this.line, 0.3, this.values, this.line.length);
+        return this.values;
+    }
+}
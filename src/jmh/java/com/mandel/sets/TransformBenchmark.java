@@ -0,0 +1,60 @@
+package com.mandel.sets;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mandel.complex.Complex;
+import com.mandel.parser.CompiledFormula;
+
+
+/**
+* TransformBenchmark -- Cost of one step of custom transformations.
+*
+* Both the tree-walking CustomTransform.apply and the compiled formula
+* used when iterating are measured.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({"z^2+c", "z^3+c", "-i*c*z^5+1+i", "(z^2+c)/(z-c)", "z^2+c^2/(z+1)"})
+    public String formula;
+
+    private CustomTransform transform;
+    private CompiledFormula compiled;
+    private double[] buffer;
+    private final Complex z = new Complex(0.3, -0.2), c = new Complex(-0.4, 0.6);
+
+    @Setup
+    public void setUp() {
+        this.transform = new CustomTransform(this.formula);
+        this.compiled = this.transform.getFormula();
+        this.buffer = this.compiled.newBuffer();
+    }
+
+    @Benchmark
+    public Complex apply() {
+        return this.transform.apply(this.z, this.c);
+    }
+
+    @Benchmark
+    public double[] applyCompiled() {
+        this.compiled.apply(0.3, -0.2, -0.4, 0.6, this.buffer);
+        return this.buffer;
+    }
+}
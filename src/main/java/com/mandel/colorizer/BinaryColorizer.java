@@ -1,6 +1,7 @@
 package com.mandel.colorizer;
 
 import java.awt.Color;
+import java.util.Arrays;
 
 
 /**
@@ -18,4 +19,11 @@ public class BinaryColorizer implements Colorizer {
     public Color getColor(float val) {
         return (val < 1.f) ? out : in;
     }
+
+    public int[] getPalette(int size) {
+        int[] palette = new int[size + 1];
+        Arrays.fill(palette, out.getRGB());
+        palette[size] = in.getRGB();
+        return palette;
+    }
 }
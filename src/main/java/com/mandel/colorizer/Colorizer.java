@@ -8,4 +8,10 @@ import java.awt.Color;
 */
 public interface Colorizer {
     public Color getColor(float val);
+
+    /**
+     * Build a lookup table of size + 1 packed ARGB colors, entry k
+     * being the color of k / size.
+     */
+    public int[] getPalette(int size);
 }
@@ -40,4 +40,12 @@ public class GradientColorizer implements Colorizer {
                          low_green + val * (high_green - low_green),
                          low_blue + val * (high_blue - low_blue));
     }
+
+    public int[] getPalette(int size) {
+        int[] palette = new int[size + 1];
+        for (int k = 0; k <= size; k++) {
+            palette[k] = this.getColor((float)k / size).getRGB();
+        }
+        return palette;
+    }
 }
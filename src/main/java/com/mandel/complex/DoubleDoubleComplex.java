@@ -0,0 +1,126 @@
+package com.mandel.complex;
+
+import java.math.BigDecimal;
+
+
+/**
+* DoubleDoubleComplex -- Mutable complex numbers in double-double precision.
+*
+* Each part is stored as the unevaluated sum hi + lo of two doubles, lo being
+* below the last bit of hi, which gives about 32 significant digits. Basic
+* operations are error-free transformations of doubles (Dekker, Knuth), so
+* they are much cheaper than BigDecimal ones.
+*
+* Operations are performed in place, so that escape loops do not allocate.
+*/
+public class DoubleDoubleComplex {
+
+    // 2^27 + 1, splits a double into two halves whose products are exact
+    private static final double SPLITTER = 134217729.0;
+
+    private double xhi, xlo, yhi, ylo;
+    // Result of the last real operation
+    private double hi, lo;
+
+    public DoubleDoubleComplex(double xhi, double xlo, double yhi, double ylo) {
+        this.xhi = xhi;
+        this.xlo = xlo;
+        this.yhi = yhi;
+        this.ylo = ylo;
+    }
+
+    public DoubleDoubleComplex(BigDecimal x, BigDecimal y) {
+        this(x.doubleValue(), x.subtract(new BigDecimal(x.doubleValue())).doubleValue(),
+             y.doubleValue(), y.subtract(new BigDecimal(y.doubleValue())).doubleValue());
+    }
+
+    public DoubleDoubleComplex(DoubleDoubleComplex a) {
+        this(a.xhi, a.xlo, a.yhi, a.ylo);
+    }
+
+    /**
+     * Real part, rounded to a double.
+     */
+    public double real() {
+        return this.xhi;
+    }
+
+    /**
+     * Imaginary part, rounded to a double.
+     */
+    public double imag() {
+        return this.yhi;
+    }
+
+    /**
+     * Square norm, rounded to a double.
+     */
+    public double square_norm() {
+        return this.xhi * this.xhi + this.yhi * this.yhi;
+    }
+
+    // In place complex operations
+
+    public DoubleDoubleComplex add(double x, double y) {
+        this.add(this.xhi, this.xlo, x, 0);
+        this.xhi = this.hi;
+        this.xlo = this.lo;
+        this.add(this.yhi, this.ylo, y, 0);
+        this.yhi = this.hi;
+        this.ylo = this.lo;
+        return this;
+    }
+
+    public DoubleDoubleComplex add(DoubleDoubleComplex a) {
+        this.add(this.xhi, this.xlo, a.xhi, a.xlo);
+        this.xhi = this.hi;
+        this.xlo = this.lo;
+        this.add(this.yhi, this.ylo, a.yhi, a.ylo);
+        this.yhi = this.hi;
+        this.ylo = this.lo;
+        return this;
+    }
+
+    public DoubleDoubleComplex square() {
+        // (x + iy)^2 = x^2 - y^2 + 2ixy
+        this.mult(this.xhi, this.xlo, this.xhi, this.xlo);
+        double x2hi = this.hi, x2lo = this.lo;
+        this.mult(this.yhi, this.ylo, this.yhi, this.ylo);
+        double y2hi = this.hi, y2lo = this.lo;
+        this.mult(this.xhi, this.xlo, this.yhi, this.ylo);
+        this.yhi = 2 * this.hi;
+        this.ylo = 2 * this.lo;
+        this.add(x2hi, x2lo, -y2hi, -y2lo);
+        this.xhi = this.hi;
+        this.xlo = this.lo;
+        return this;
+    }
+
+    // Real double-double operations, the result being stored in (hi, lo)
+
+    private void add(double ahi, double alo, double bhi, double blo) {
+        // Two-sum of the high parts, then of the low parts
+        double s = ahi + bhi, v = s - ahi;
+        double e = (ahi - (s - v)) + (bhi - v);
+        double t = alo + blo, w = t - alo;
+        double f = (alo - (t - w)) + (blo - w);
+        e += t;
+        double r = s + e;
+        e -= r - s;
+        e += f;
+        this.hi = r + e;
+        this.lo = e - (this.hi - r);
+    }
+
+    private void mult(double ahi, double alo, double bhi, double blo) {
+        // Two-product of the high parts, using Dekker's split
+        double p = ahi * bhi;
+        double t = SPLITTER * ahi, ah = t - (t - ahi), al = ahi - ah;
+        t = SPLITTER * bhi;
+        double bh = t - (t - bhi), bl = bhi - bh;
+        double e = ((ah * bh - p) + ah * bl + al * bh) + al * bl;
+        e += ahi * blo + alo * bhi;
+        this.hi = p + e;
+        this.lo = e - (this.hi - p);
+    }
+}
@@ -42,6 +42,16 @@ public class AST extends BaseNode {
         this.operands = new ArrayList<BaseNode>();
     }
 
+    /**
+     * Build a node from its operands, given from left to right.
+     */
+    AST(int op, BaseNode... operands) {
+        this(op);
+        for (int i = operands.length - 1; i >= 0; i--) {
+            this.pushOperand(operands[i]);
+        }
+    }
+
     /**
      * Parse input and generate an abstract syntax tree.
      *
@@ -151,6 +161,18 @@ public class AST extends BaseNode {
         }
     }
 
+    int getOp() {
+        return this.op;
+    }
+
+    /**
+     * Operands are stored in reverse order, the first one being the
+     * right-hand side of binary operators.
+     */
+    List<BaseNode> getOperands() {
+        return this.operands;
+    }
+
     private void pushOperand(BaseNode operand) {
         if (this.operands.size() > OPS_OPDS[this.op - 1]) {
             throw new InvalidFormula(
@@ -212,6 +234,15 @@ public class AST extends BaseNode {
         return OPS[this.op - 1];
     }
 
+    @Override
+    public String getSignature() {
+        StringBuilder sb = new StringBuilder("(").append(this.getDisplay());
+        for (BaseNode operand: this.operands) {
+            sb.append(' ').append(operand.getSignature());
+        }
+        return sb.append(')').toString();
+    }
+
     @Override
     public void prettyPrint(int depth, boolean isLast) {
         super.prettyPrint(depth, isLast);
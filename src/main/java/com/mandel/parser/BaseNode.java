@@ -20,6 +20,14 @@ public abstract class BaseNode {
 
     public abstract String getDisplay();
 
+    /**
+     * A canonical description of the tree, in prefix notation.
+     *
+     * Trees with the same signature compute the same values.
+     */
+    public String getSignature() {
+        return this.getDisplay();
+    }
 
     /**
      * Print the AST with one node per row.
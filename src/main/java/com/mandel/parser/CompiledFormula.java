@@ -0,0 +1,22 @@
+package com.mandel.parser;
+
+
+/**
+* CompiledFormula -- A formula of two complex variables working on primitive doubles.
+*
+* Implementations are produced by FormulaCompiler or Program and must not allocate when applied.
+*/
+public interface CompiledFormula {
+    /**
+     * Allocate a buffer suitable for apply.
+     *
+     * A buffer can be reused for any number of evaluations, but not concurrently.
+     */
+    public double[] newBuffer();
+
+    /**
+     * Evaluate the formula for (ax + i.ay, bx + i.by), the real and imaginary
+     * parts of the result are stored in out[0] and out[1].
+     */
+    public void apply(double ax, double ay, double bx, double by, double[] out);
+}
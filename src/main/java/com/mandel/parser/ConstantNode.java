@@ -15,6 +15,10 @@ public class ConstantNode extends BaseNode {
         this.value = value;
     }
 
+    public Complex getValue() {
+        return this.value;
+    }
+
     @Override
     public Complex compute(Map<String,Complex> context) {
         return this.value;
@@ -24,4 +28,10 @@ public class ConstantNode extends BaseNode {
     public String getDisplay() {
         return this.value.toString();
     }
+
+    @Override
+    public String getSignature() {
+        // Displayed values are rounded
+        return String.format("(%s,%s)", Double.toString(this.value.real()), Double.toString(this.value.imag()));
+    }
 }
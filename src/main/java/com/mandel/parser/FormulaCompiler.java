@@ -0,0 +1,549 @@
+package com.mandel.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mandel.complex.Complex;
+
+
+/**
+* FormulaCompiler -- Compiles a (reduced) AST into a JVM class implementing CompiledFormula.
+*
+* The generated apply method is straight-line code working on pairs of
+* doubles stored in local variables, the two formula variables being bound
+* to the method arguments. Operations are emitted in the very same order as
+* in Complex so that results are identical to AST.compute.
+*
+* No third-party library is used: the class file is written by hand, with
+* version 49 so that no stack map frames are required.
+*/
+public class FormulaCompiler {
+
+    // Larger integer exponents are delegated to Complex.pow
+    static final int MAX_UNROLLED_POW = 64;
+
+    private static final AtomicInteger counter = new AtomicInteger();
+    private static final String
+        ITF = "com/mandel/parser/CompiledFormula",
+        SELF = "com/mandel/parser/FormulaCompiler",
+        APPLY_DESC = "(DDDD[D)V",
+        BUFFER_DESC = "()[D",
+        UNARY_DESC = "(DD[DI)V",
+        BINARY_DESC = "(DDDD[DI)V";
+
+    // Local variable slots of the apply method, imaginary parts follow real ones
+    private static final int A = 1, B = 5, OUT = 9, FIRST_TEMP = 10;
+
+    private final Map<String,Integer> variables;
+    private final Map<BaseNode,Value> values;
+    private final ConstantPool pool;
+    private final ByteArrayOutputStream code;
+    private int nextLocal;
+
+    public static class CompilationError extends RuntimeException {
+        public CompilationError(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+    * Value -- The result of a node, either a constant or a pair of local slots.
+    */
+    private static class Value {
+        final Complex constant;
+        final int x, y;
+
+        Value(Complex constant) {
+            this.constant = constant;
+            this.x = this.y = -1;
+        }
+
+        Value(int x, int y) {
+            this.constant = null;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static class FormulaLoader extends ClassLoader {
+        FormulaLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private FormulaCompiler(String a, String b) {
+        this.variables = new HashMap<String,Integer>();
+        this.variables.put(a, A);
+        this.variables.put(b, B);
+        this.values = new IdentityHashMap<BaseNode,Value>();
+        this.pool = new ConstantPool();
+        this.code = new ByteArrayOutputStream();
+        this.nextLocal = FIRST_TEMP;
+    }
+
+    /**
+     * Compile the tree rooted at root, a and b being the names of its two variables.
+     *
+     * Throws VariableNode.UndefinedReference if any other variable is used.
+     */
+    public static CompiledFormula compile(BaseNode root, String a, String b) {
+        FormulaCompiler compiler = new FormulaCompiler(a, b);
+        String name = "com.mandel.parser.GeneratedFormula" + counter.incrementAndGet();
+        byte[] bytes = compiler.generate(name.replace('.', '/'), root);
+        try {
+            FormulaLoader loader = new FormulaLoader(FormulaCompiler.class.getClassLoader());
+            return (CompiledFormula)loader.define(name, bytes).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            throw new CompilationError("Could not load compiled formula", e);
+        }
+    }
+
+    private byte[] generate(String name, BaseNode root) {
+        Value res = this.emit(root);
+        this.store(res.constant != null ? res.constant.real() : 0, res.x, 0);
+        this.store(res.constant != null ? res.constant.imag() : 0, res.y, 1);
+        this.code.write(0xb1); // return
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int thisClass = this.pool.classRef(name);
+            int superClass = this.pool.classRef("java/lang/Object");
+            int itf = this.pool.classRef(ITF);
+            int init = this.pool.methodRef("java/lang/Object", "<init>", "()V");
+            int codeAttr = this.pool.utf8("Code");
+            int initName = this.pool.utf8("<init>"), initDesc = this.pool.utf8("()V");
+            int applyName = this.pool.utf8("apply"), applyDesc = this.pool.utf8(APPLY_DESC);
+            int bufferName = this.pool.utf8("newBuffer"), bufferDesc = this.pool.utf8(BUFFER_DESC);
+
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            this.pool.write(out);
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(itf);
+            out.writeShort(0); // fields
+            out.writeShort(3); // methods
+
+            // Default constructor
+            byte[] initCode = {0x2a, (byte)0xb7, (byte)(init >> 8), (byte)init, (byte)0xb1};
+            writeMethod(out, initName, initDesc, codeAttr, 1, 1, initCode);
+            writeMethod(out, applyName, applyDesc, codeAttr, 16, this.nextLocal, this.code.toByteArray());
+            // return new double[2]
+            byte[] bufferCode = {0x05, (byte)0xbc, 0x07, (byte)0xb0};
+            writeMethod(out, bufferName, bufferDesc, codeAttr, 1, 1, bufferCode);
+
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new CompilationError("Could not write compiled formula", e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeAttr,
+                                    int maxStack, int maxLocals, byte[] body) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /**
+     * Emit the code computing node, shared nodes being computed only once.
+     */
+    private Value emit(BaseNode node) {
+        Value res = this.values.get(node);
+        if (res == null) {
+            res = this.emitNode(node);
+            this.values.put(node, res);
+        }
+        return res;
+    }
+
+    private Value emitNode(BaseNode node) {
+        if (node instanceof ConstantNode) {
+            return new Value(((ConstantNode)node).getValue());
+        } else if (node instanceof VariableNode) {
+            String key = ((VariableNode)node).getKey();
+            Integer slot = this.variables.get(key);
+            if (slot == null) {
+                throw new VariableNode.UndefinedReference(String.format("No such variable %s!", key));
+            }
+            return new Value(slot, slot + 2);
+        }
+
+        AST ast = (AST)node;
+        List<BaseNode> operands = ast.getOperands();
+        switch (ast.getOp()) {
+            case AST.NEG:
+                return this.emitNeg(this.emit(operands.get(0)));
+            case AST.ADD:
+                return this.emitAddSub(this.emit(operands.get(1)), this.emit(operands.get(0)), 0x63);
+            case AST.SUB:
+                return this.emitAddSub(this.emit(operands.get(1)), this.emit(operands.get(0)), 0x67);
+            case AST.MULT:
+                return this.emitMult(this.emit(operands.get(1)), this.emit(operands.get(0)));
+            case AST.DIV:
+                return this.emitDiv(this.emit(operands.get(1)), this.emit(operands.get(0)));
+            case AST.POW:
+                return this.emitPow(this.emit(operands.get(1)), this.emit(operands.get(0)));
+            case AST.FACT:
+                Value a = this.emit(operands.get(0));
+                this.loadX(a);
+                this.loadY(a);
+                return this.emitHelper("fact", UNARY_DESC);
+        }
+        throw new RuntimeException(String.format("Invalid node %d", ast.getOp()));
+    }
+
+    private Value emitNeg(Value a) {
+        Value res = this.newValue();
+        this.loadX(a);
+        this.code.write(0x77); // dneg
+        this.storeLocal(res.x);
+        this.loadY(a);
+        this.code.write(0x77);
+        this.storeLocal(res.y);
+        return res;
+    }
+
+    private Value emitAddSub(Value a, Value b, int opcode) {
+        Value res = this.newValue();
+        this.loadX(a);
+        this.loadX(b);
+        this.code.write(opcode);
+        this.storeLocal(res.x);
+        this.loadY(a);
+        this.loadY(b);
+        this.code.write(opcode);
+        this.storeLocal(res.y);
+        return res;
+    }
+
+    private Value emitMult(Value a, Value b) {
+        Value res = this.newValue();
+        // a.x * b.x - a.y * b.y
+        this.loadX(a);
+        this.loadX(b);
+        this.code.write(0x6b);
+        this.loadY(a);
+        this.loadY(b);
+        this.code.write(0x6b);
+        this.code.write(0x67);
+        this.storeLocal(res.x);
+        // a.x * b.y + a.y * b.x
+        this.loadX(a);
+        this.loadY(b);
+        this.code.write(0x6b);
+        this.loadY(a);
+        this.loadX(b);
+        this.code.write(0x6b);
+        this.code.write(0x63);
+        this.storeLocal(res.y);
+        return res;
+    }
+
+    private Value emitDiv(Value a, Value b) {
+        Value res = this.newValue();
+        int norm = this.nextLocal;
+        this.nextLocal += 2;
+        // b.x * b.x + b.y * b.y, checked against zero
+        this.loadX(b);
+        this.loadX(b);
+        this.code.write(0x6b);
+        this.loadY(b);
+        this.loadY(b);
+        this.code.write(0x6b);
+        this.code.write(0x63);
+        this.invokeStatic(SELF, "divisor", "(D)D");
+        this.storeLocal(norm);
+        // (a.x * b.x + a.y * b.y) / norm
+        this.loadX(a);
+        this.loadX(b);
+        this.code.write(0x6b);
+        this.loadY(a);
+        this.loadY(b);
+        this.code.write(0x6b);
+        this.code.write(0x63);
+        this.loadLocal(norm);
+        this.code.write(0x6f);
+        this.storeLocal(res.x);
+        // (a.y * b.x - a.x * b.y) / norm
+        this.loadY(a);
+        this.loadX(b);
+        this.code.write(0x6b);
+        this.loadX(a);
+        this.loadY(b);
+        this.code.write(0x6b);
+        this.code.write(0x67);
+        this.loadLocal(norm);
+        this.code.write(0x6f);
+        this.storeLocal(res.y);
+        return res;
+    }
+
+    private Value emitPow(Value a, Value b) {
+        Complex exp = b.constant;
+        if (exp != null && exp.imag() == 0 && exp.real() == Math.rint(exp.real())
+            && (int)exp.real() <= MAX_UNROLLED_POW) {
+            // Same as Complex.pow: repeated multiplications by a
+            Value res = a;
+            for (int i = 1; i < (int)exp.real(); i++) {
+                res = this.emitMult(res, a);
+            }
+            return res;
+        }
+        this.loadX(a);
+        this.loadY(a);
+        this.loadX(b);
+        this.loadY(b);
+        return this.emitHelper("pow", BINARY_DESC);
+    }
+
+    /**
+     * Call a static helper writing its result into the out array,
+     * which is then copied to fresh locals.
+     */
+    private Value emitHelper(String name, String desc) {
+        Value res = this.newValue();
+        this.loadLocalRef(OUT);
+        this.code.write(0x03); // iconst_0
+        this.invokeStatic(SELF, name, desc);
+        this.loadLocalRef(OUT);
+        this.code.write(0x03); // iconst_0
+        this.code.write(0x31); // daload
+        this.storeLocal(res.x);
+        this.loadLocalRef(OUT);
+        this.code.write(0x04); // iconst_1
+        this.code.write(0x31);
+        this.storeLocal(res.y);
+        return res;
+    }
+
+    private void store(double constant, int slot, int index) {
+        this.loadLocalRef(OUT);
+        this.code.write(index == 0 ? 0x03 : 0x04);
+        if (slot == -1) {
+            this.loadConstant(constant);
+        } else {
+            this.loadLocal(slot);
+        }
+        this.code.write(0x52); // dastore
+    }
+
+    private Value newValue() {
+        Value res = new Value(this.nextLocal, this.nextLocal + 2);
+        this.nextLocal += 4;
+        return res;
+    }
+
+    private void loadX(Value v) {
+        if (v.constant != null) {
+            this.loadConstant(v.constant.real());
+        } else {
+            this.loadLocal(v.x);
+        }
+    }
+
+    private void loadY(Value v) {
+        if (v.constant != null) {
+            this.loadConstant(v.constant.imag());
+        } else {
+            this.loadLocal(v.y);
+        }
+    }
+
+    private void loadConstant(double d) {
+        if (Double.doubleToRawLongBits(d) == 0L) {
+            this.code.write(0x0e); // dconst_0
+        } else if (d == 1.0) {
+            this.code.write(0x0f); // dconst_1
+        } else {
+            int index = this.pool.doubleConstant(d);
+            this.code.write(0x14); // ldc2_w
+            this.code.write(index >> 8);
+            this.code.write(index);
+        }
+    }
+
+    private void loadLocal(int slot) {
+        this.localInsn(0x18, slot); // dload
+    }
+
+    private void storeLocal(int slot) {
+        this.localInsn(0x39, slot); // dstore
+    }
+
+    private void loadLocalRef(int slot) {
+        this.localInsn(0x19, slot); // aload
+    }
+
+    private void localInsn(int opcode, int slot) {
+        if (slot > 0xff) {
+            this.code.write(0xc4); // wide
+            this.code.write(opcode);
+            this.code.write(slot >> 8);
+            this.code.write(slot);
+        } else {
+            this.code.write(opcode);
+            this.code.write(slot);
+        }
+    }
+
+    private void invokeStatic(String owner, String name, String desc) {
+        int index = this.pool.methodRef(owner, name, desc);
+        this.code.write(0xb8);
+        this.code.write(index >> 8);
+        this.code.write(index);
+    }
+
+    // Runtime support for generated code, not meant to be called directly.
+
+    public static double divisor(double squareNorm) {
+        if (squareNorm == 0) {
+            throw new Complex.IllegalOperation("Cannot divide by zero!");
+        }
+        return squareNorm;
+    }
+
+    /**
+     * Same as Complex.pow, without allocating.
+     *
+     * The result is stored in out[offset] and out[offset + 1].
+     */
+    public static void pow(double ax, double ay, double bx, double by, double[] out, int offset) {
+        if (by == 0 && bx == Math.rint(bx)) {
+            double x = ax, y = ay, tmp;
+            for (int i = 1; i < (int)bx; i++) {
+                tmp = x * ax - y * ay;
+                y = x * ay + y * ax;
+                x = tmp;
+            }
+            out[offset] = x;
+            out[offset + 1] = y;
+        } else if (ax == Math.E && ay == 0) {
+            double r = Math.exp(bx);
+            out[offset] = r * Math.cos(by);
+            out[offset + 1] = r * Math.sin(by);
+        } else {
+            throw new Complex.IllegalOperation("Unsupported operation!");
+        }
+    }
+
+    /**
+     * Same as Complex.fact, without allocating.
+     *
+     * The result is stored in out[offset] and out[offset + 1].
+     */
+    public static void fact(double ax, double ay, double[] out, int offset) {
+        if (ay != 0 || ax != Math.rint(ax)) {
+            throw new Complex.IllegalOperation("Factorial requires a positive integer!");
+        }
+        int res = 1;
+        for (int i = 2; i <= (int)ax; i++) {
+            res *= i;
+        }
+        out[offset] = res;
+        out[offset + 1] = 0;
+    }
+
+    /**
+    * ConstantPool -- The constant pool of the generated class.
+    */
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String,Integer> entries = new HashMap<String,Integer>();
+        private int count = 1;
+
+        int utf8(String s) {
+            Integer index = this.entries.get("U" + s);
+            if (index == null) {
+                try {
+                    this.out.writeByte(1);
+                    this.out.writeUTF(s);
+                } catch (IOException e) {
+                    throw new CompilationError("Could not write constant pool", e);
+                }
+                index = this.add("U" + s, 1);
+            }
+            return index;
+        }
+
+        int classRef(String name) {
+            return this.ref(7, "C" + name, this.utf8(name), -1);
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            int cls = this.classRef(owner);
+            int nat = this.ref(12, "N" + name + desc, this.utf8(name), this.utf8(desc));
+            return this.ref(10, "M" + owner + "." + name + desc, cls, nat);
+        }
+
+        int doubleConstant(double d) {
+            long bits = Double.doubleToRawLongBits(d);
+            Integer index = this.entries.get("D" + bits);
+            if (index == null) {
+                try {
+                    this.out.writeByte(6);
+                    this.out.writeLong(bits);
+                } catch (IOException e) {
+                    throw new CompilationError("Could not write constant pool", e);
+                }
+                // Doubles take two entries
+                index = this.add("D" + bits, 2);
+            }
+            return index;
+        }
+
+        private int ref(int tag, String key, int first, int second) {
+            Integer index = this.entries.get(key);
+            if (index == null) {
+                try {
+                    this.out.writeByte(tag);
+                    this.out.writeShort(first);
+                    if (second != -1) {
+                        this.out.writeShort(second);
+                    }
+                } catch (IOException e) {
+                    throw new CompilationError("Could not write constant pool", e);
+                }
+                index = this.add(key, 1);
+            }
+            return index;
+        }
+
+        private int add(String key, int size) {
+            int index = this.count;
+            this.entries.put(key, index);
+            this.count += size;
+            return index;
+        }
+
+        void write(DataOutputStream dest) throws IOException {
+            dest.writeShort(this.count);
+            dest.write(this.bytes.toByteArray());
+        }
+    }
+}
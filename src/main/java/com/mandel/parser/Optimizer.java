@@ -0,0 +1,213 @@
+package com.mandel.parser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mandel.complex.Complex;
+
+
+/**
+* Optimizer -- Algebraic simplification of an abstract syntax tree.
+*
+* The tree is rewritten bottom-up, with the following rules:
+*  - constant folding, e.g. 2 * 3 -> 6
+*  - identity removal, e.g. 1 * x, x + 0, x / 1
+*  - negation folding, e.g. c - (-z) -> c + z, -(-x) -> x
+*  - division by a power of two turned into a multiplication
+*  - small integer powers expanded into multiplications
+* Only rewrites which are exact in double arithmetic are carried out (but
+* for the sign of zeros and non-finite values), so optimized formulas plot
+* the same images: constants are not re-associated, and powers are
+* multiplied in the same order as Complex.pow.
+* Identical subtrees are then merged (common subexpression elimination), so the
+* result is a directed acyclic graph in which each distinct subexpression
+* appears only once. Compilers only evaluate such shared nodes once.
+*
+* The input tree is left untouched.
+*/
+public class Optimizer {
+
+    private static final Complex
+        ZERO = new Complex(0, 0),
+        MINUS_ONE = new Complex(-1, 0);
+
+    // Canonical key of every distinct subtree already built
+    private final Map<String,BaseNode> nodes = new HashMap<String,BaseNode>();
+    private final Map<BaseNode,String> keys = new HashMap<BaseNode,String>();
+
+    private Optimizer() {
+    }
+
+    public static BaseNode optimize(BaseNode root) {
+        return new Optimizer().visit(root);
+    }
+
+    private BaseNode visit(BaseNode node) {
+        if (!(node instanceof AST)) {
+            return this.intern(node);
+        }
+        AST ast = (AST)node;
+        List<BaseNode> operands = ast.getOperands();
+        if (operands.size() == 1) {
+            return this.unary(ast.getOp(), this.visit(operands.get(0)));
+        }
+        return this.binary(ast.getOp(), this.visit(operands.get(1)), this.visit(operands.get(0)));
+    }
+
+    private BaseNode unary(int op, BaseNode a) {
+        if (a instanceof ConstantNode) {
+            return this.fold(op, a);
+        }
+        if (op == AST.NEG && isOp(a, AST.NEG)) {
+            return right(a);
+        }
+        return this.intern(new AST(op, a));
+    }
+
+    private BaseNode binary(int op, BaseNode a, BaseNode b) {
+        if (a instanceof ConstantNode && b instanceof ConstantNode) {
+            return this.fold(op, a, b);
+        }
+        switch (op) {
+            case AST.ADD:
+                if (isConstant(a, ZERO)) {
+                    return b;
+                } else if (isConstant(b, ZERO)) {
+                    return a;
+                } else if (isOp(b, AST.NEG)) {
+                    return this.binary(AST.SUB, a, right(b));
+                } else if (isOp(a, AST.NEG)) {
+                    return this.binary(AST.SUB, b, right(a));
+                }
+                return this.commutative(AST.ADD, a, b);
+            case AST.SUB:
+                if (isConstant(b, ZERO)) {
+                    return a;
+                } else if (isConstant(a, ZERO)) {
+                    return this.unary(AST.NEG, b);
+                } else if (isOp(b, AST.NEG)) {
+                    return this.binary(AST.ADD, a, right(b));
+                } else if (b instanceof ConstantNode) {
+                    return this.binary(AST.ADD, a, this.fold(AST.NEG, b));
+                }
+                break;
+            case AST.MULT:
+                if (isConstant(a, Complex.One)) {
+                    return b;
+                } else if (isConstant(b, Complex.One)) {
+                    return a;
+                } else if (isConstant(a, MINUS_ONE)) {
+                    return this.unary(AST.NEG, b);
+                } else if (isConstant(b, MINUS_ONE)) {
+                    return this.unary(AST.NEG, a);
+                } else if (isOp(a, AST.NEG) && isOp(b, AST.NEG)) {
+                    return this.binary(AST.MULT, right(a), right(b));
+                }
+                return this.commutative(AST.MULT, a, b);
+            case AST.DIV:
+                if (isConstant(b, Complex.One)) {
+                    return a;
+                } else if (isPowerOfTwo(b)) {
+                    return this.binary(AST.MULT, this.fold(AST.DIV, new ConstantNode(Complex.One), b), a);
+                }
+                break;
+            case AST.POW:
+                if (b instanceof ConstantNode) {
+                    Complex exp = ((ConstantNode)b).getValue();
+                    if (exp.imag() == 0 && exp.real() == Math.rint(exp.real())
+                        && exp.real() <= FormulaCompiler.MAX_UNROLLED_POW) {
+                        return this.power(a, (int)exp.real());
+                    }
+                }
+                break;
+        }
+        return this.intern(new AST(op, a, b));
+    }
+
+    /**
+     * Commutative operators: constants are moved to the left.
+     */
+    private BaseNode commutative(int op, BaseNode a, BaseNode b) {
+        if (b instanceof ConstantNode
+            || (!(a instanceof ConstantNode) && this.keys.get(a).compareTo(this.keys.get(b)) > 0)) {
+            // Operands are also sorted so that a + b and b + a are merged
+            BaseNode tmp = a;
+            a = b;
+            b = tmp;
+        }
+        return this.intern(new AST(op, a, b));
+    }
+
+    /**
+     * Expand x^n into ((x * x) * x) * ..., as computed by Complex.pow.
+     *
+     * Lower powers of x are shared with the expansion, e.g. x^3 reuses x^2.
+     * As in Complex.pow, integer exponents lower than 2 leave x unchanged.
+     */
+    private BaseNode power(BaseNode x, int n) {
+        BaseNode res = x;
+        for (int i = 1; i < n; i++) {
+            res = this.intern(new AST(AST.MULT, res, x));
+        }
+        return res;
+    }
+
+    private BaseNode fold(int op, BaseNode... operands) {
+        return this.intern(new ConstantNode(new AST(op, operands).compute(null)));
+    }
+
+    /**
+     * Return the already built node equal to node, if any.
+     */
+    private BaseNode intern(BaseNode node) {
+        String key;
+        if (node instanceof ConstantNode) {
+            Complex value = ((ConstantNode)node).getValue();
+            key = String.format("%s;%s", Double.doubleToLongBits(value.real()),
+                                Double.doubleToLongBits(value.imag()));
+        } else if (node instanceof VariableNode) {
+            key = ((VariableNode)node).getKey();
+        } else {
+            StringBuilder sb = new StringBuilder();
+            sb.append(((AST)node).getOp()).append('(');
+            for (BaseNode operand: ((AST)node).getOperands()) {
+                sb.append(this.keys.get(operand)).append(',');
+            }
+            key = sb.append(')').toString();
+        }
+        BaseNode existing = this.nodes.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        this.nodes.put(key, node);
+        this.keys.put(node, key);
+        return node;
+    }
+
+    private static boolean isOp(BaseNode node, int op) {
+        return node instanceof AST && ((AST)node).getOp() == op;
+    }
+
+    /**
+     * Whether node is a real power of two with a normal reciprocal, by which dividing is exactly
+     * multiplying by the reciprocal.
+     */
+    private static boolean isPowerOfTwo(BaseNode node) {
+        if (!(node instanceof ConstantNode)) {
+            return false;
+        }
+        Complex value = ((ConstantNode)node).getValue();
+        int exponent = Math.getExponent(value.real());
+        return value.imag() == 0 && exponent > Double.MIN_EXPONENT && exponent < Double.MAX_EXPONENT
+               && Math.abs(value.real()) == Math.scalb(1., exponent);
+    }
+
+    private static boolean isConstant(BaseNode node, Complex value) {
+        return node instanceof ConstantNode && ((ConstantNode)node).getValue().equals(value);
+    }
+
+    private static BaseNode right(BaseNode node) {
+        return ((AST)node).getOperands().get(0);
+    }
+}
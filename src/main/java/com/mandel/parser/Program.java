@@ -0,0 +1,218 @@
+package com.mandel.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mandel.complex.Complex;
+
+
+/**
+* Program -- A formula compiled into a flat array of register-based instructions.
+*
+* This is a portable alternative to FormulaCompiler, which does not require
+* defining classes at runtime. Every instruction is made of an opcode and
+* three register indexes (destination and operands), a register being a
+* pair of consecutive cells of the buffer holding a complex number.
+*
+* Variables are resolved to registers at compile time, and constants are
+* loaded into their registers once, when the buffer is allocated.
+*/
+public class Program implements CompiledFormula {
+
+    static final int MOV = 0, NEG = 1, ADD = 2, SUB = 3, MULT = 4, DIV = 5, POW = 6, FACT = 7;
+
+    // Fixed registers: the result, then both variables
+    private static final int RES = 0, A = 2, B = 4;
+
+    private final int[] code;
+    private final double[] init;
+
+    private Program(int[] code, double[] init) {
+        this.code = code;
+        this.init = init;
+    }
+
+    /**
+    * Builder -- Generates instructions while walking the tree.
+    */
+    private static class Builder {
+        private final Map<String,Integer> variables = new HashMap<String,Integer>();
+        private final Map<Integer,Complex> constants = new HashMap<Integer,Complex>();
+        private final List<Integer> code = new ArrayList<Integer>();
+        private final Map<BaseNode,Integer> registers = new IdentityHashMap<BaseNode,Integer>();
+        private int nextRegister = B + 2;
+
+        Builder(String a, String b) {
+            this.variables.put(a, A);
+            this.variables.put(b, B);
+        }
+
+        /**
+         * Emit the instructions computing node, shared nodes being computed only once.
+         */
+        int emit(BaseNode node) {
+            Integer reg = this.registers.get(node);
+            if (reg == null) {
+                reg = this.emitNode(node);
+                this.registers.put(node, reg);
+            }
+            return reg;
+        }
+
+        private int emitNode(BaseNode node) {
+            if (node instanceof ConstantNode) {
+                int reg = this.newRegister();
+                this.constants.put(reg, ((ConstantNode)node).getValue());
+                return reg;
+            } else if (node instanceof VariableNode) {
+                String key = ((VariableNode)node).getKey();
+                Integer reg = this.variables.get(key);
+                if (reg == null) {
+                    throw new VariableNode.UndefinedReference(String.format("No such variable %s!", key));
+                }
+                return reg;
+            }
+
+            AST ast = (AST)node;
+            List<BaseNode> operands = ast.getOperands();
+            switch (ast.getOp()) {
+                case AST.NEG:
+                    return this.instruction(NEG, this.emit(operands.get(0)), 0);
+                case AST.ADD:
+                    return this.instruction(ADD, this.emit(operands.get(1)), this.emit(operands.get(0)));
+                case AST.SUB:
+                    return this.instruction(SUB, this.emit(operands.get(1)), this.emit(operands.get(0)));
+                case AST.MULT:
+                    return this.instruction(MULT, this.emit(operands.get(1)), this.emit(operands.get(0)));
+                case AST.DIV:
+                    return this.instruction(DIV, this.emit(operands.get(1)), this.emit(operands.get(0)));
+                case AST.POW:
+                    int a = this.emit(operands.get(1));
+                    BaseNode exp = operands.get(0);
+                    if (exp instanceof ConstantNode) {
+                        Complex b = ((ConstantNode)exp).getValue();
+                        if (b.imag() == 0 && b.real() == Math.rint(b.real())
+                            && (int)b.real() <= FormulaCompiler.MAX_UNROLLED_POW) {
+                            // Same as Complex.pow: repeated multiplications by a
+                            int res = a;
+                            for (int i = 1; i < (int)b.real(); i++) {
+                                res = this.instruction(MULT, res, a);
+                            }
+                            return res;
+                        }
+                    }
+                    return this.instruction(POW, a, this.emit(exp));
+                case AST.FACT:
+                    return this.instruction(FACT, this.emit(operands.get(0)), 0);
+            }
+            throw new RuntimeException(String.format("Invalid node %d", ast.getOp()));
+        }
+
+        int instruction(int op, int a, int b) {
+            int dest = this.newRegister();
+            this.code.add(op);
+            this.code.add(dest);
+            this.code.add(a);
+            this.code.add(b);
+            return dest;
+        }
+
+        int newRegister() {
+            int reg = this.nextRegister;
+            this.nextRegister += 2;
+            return reg;
+        }
+
+        Program build(int res) {
+            int size = this.code.size();
+            if (size > 0 && this.code.get(size - 3) == res) {
+                // Write the last result directly in the result register
+                this.code.set(size - 3, RES);
+            } else {
+                this.code.add(MOV);
+                this.code.add(RES);
+                this.code.add(res);
+                this.code.add(0);
+            }
+            int[] code = new int[this.code.size()];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = this.code.get(i);
+            }
+            double[] init = new double[this.nextRegister];
+            for (Map.Entry<Integer,Complex> entry: this.constants.entrySet()) {
+                init[entry.getKey()] = entry.getValue().real();
+                init[entry.getKey() + 1] = entry.getValue().imag();
+            }
+            return new Program(code, init);
+        }
+    }
+
+    /**
+     * Compile the tree rooted at root, a and b being the names of its two variables.
+     *
+     * Throws VariableNode.UndefinedReference if any other variable is used.
+     */
+    public static Program compile(BaseNode root, String a, String b) {
+        Builder builder = new Builder(a, b);
+        return builder.build(builder.emit(root));
+    }
+
+    @Override
+    public double[] newBuffer() {
+        return this.init.clone();
+    }
+
+    @Override
+    public void apply(double ax, double ay, double bx, double by, double[] r) {
+        final int[] code = this.code;
+        double x, y, norm;
+        r[A] = ax;
+        r[A + 1] = ay;
+        r[B] = bx;
+        r[B + 1] = by;
+        for (int pc = 0; pc < code.length; pc += 4) {
+            int d = code[pc + 1], a = code[pc + 2], b = code[pc + 3];
+            // Operations are carried out in the same order as in Complex
+            switch (code[pc]) {
+                case MOV:
+                    r[d] = r[a];
+                    r[d + 1] = r[a + 1];
+                    break;
+                case NEG:
+                    r[d] = -r[a];
+                    r[d + 1] = -r[a + 1];
+                    break;
+                case ADD:
+                    r[d] = r[a] + r[b];
+                    r[d + 1] = r[a + 1] + r[b + 1];
+                    break;
+                case SUB:
+                    r[d] = r[a] - r[b];
+                    r[d + 1] = r[a + 1] - r[b + 1];
+                    break;
+                case MULT:
+                    x = r[a] * r[b] - r[a + 1] * r[b + 1];
+                    y = r[a] * r[b + 1] + r[a + 1] * r[b];
+                    r[d] = x;
+                    r[d + 1] = y;
+                    break;
+                case DIV:
+                    norm = FormulaCompiler.divisor(r[b] * r[b] + r[b + 1] * r[b + 1]);
+                    x = (r[a] * r[b] + r[a + 1] * r[b + 1]) / norm;
+                    y = (r[a + 1] * r[b] - r[a] * r[b + 1]) / norm;
+                    r[d] = x;
+                    r[d + 1] = y;
+                    break;
+                case POW:
+                    FormulaCompiler.pow(r[a], r[a + 1], r[b], r[b + 1], r, d);
+                    break;
+                case FACT:
+                    FormulaCompiler.fact(r[a], r[a + 1], r, d);
+                    break;
+            }
+        }
+    }
+}
@@ -21,6 +21,10 @@ public class VariableNode extends BaseNode {
         this.key = key;
     }
 
+    public String getKey() {
+        return this.key;
+    }
+
     @Override
     public Complex compute(Map<String,Complex> context) {
         Complex res = context.get(this.key);
@@ -0,0 +1,340 @@
+package com.mandel.plotter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+* Batch -- Runs the jobs of a job file in a single process.
+*
+* Each line of the file holds the options of a job, as they would be given
+* on the command line, or a JSON object mapping options to their values
+* (e.g. {"f": "julia.png", "set": "julia", "iter": 200, "v": true}). Empty
+* lines and lines starting with '#' are skipped. The whole file may also be
+* a JSON array of such objects.
+*
+* A number of jobs run at once, their plots being computed in a shared
+* pool, and the outcome of each job is printed as soon as it ends. Sets
+* built from the same transformation share its compiled formula.
+*/
+class Batch {
+
+    private static final ThreadLocal<Job> current = new ThreadLocal<Job>();
+
+    public static class InvalidJob extends IllegalArgumentException {
+        public InvalidJob(String message) {
+            super(message);
+        }
+    }
+
+    /**
+    * Job -- The options of a job, and its outcome once run.
+    */
+    static class Job {
+        final String name;
+        final String[] args;
+        private String result, error;
+        private long millis;
+
+        Job(String name, String[] args) {
+            this.name = name;
+            this.args = args;
+        }
+
+        /**
+         * Record the result of the job.
+         */
+        void succeed(String result) {
+            this.result = result;
+        }
+
+        /**
+         * Record an error of the job, only the first one being kept.
+         */
+        void fail(String error) {
+            if (this.error == null) {
+                this.error = error;
+            }
+        }
+
+        boolean failed() {
+            return this.error != null;
+        }
+    }
+
+    /**
+     * The job run by the current thread, or null outside of batches.
+     */
+    static Job current() {
+        return current.get();
+    }
+
+    /**
+     * Read the jobs of a job file.
+     */
+    static List<Job> read(File fil) throws IOException {
+        String content = new String(Files.readAllBytes(fil.toPath()), Charset.forName("UTF-8"));
+        List<Job> jobs = new ArrayList<Job>();
+        if (content.trim().startsWith("[")) {
+            Json json = new Json(content);
+            for (List<String> args: json.readJobs()) {
+                jobs.add(new Job("job " + (jobs.size() + 1), args.toArray(new String[args.size()])));
+            }
+            return jobs;
+        }
+        String[] lines = content.split("\r?\n");
+        for (int k = 0; k < lines.length; k++) {
+            String line = lines[k].trim();
+            if (line.equals("") || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                List<String> args = line.startsWith("{") ? new Json(line).readJob() : split(line);
+                jobs.add(new Job("line " + (k + 1), args.toArray(new String[args.size()])));
+            } catch (InvalidJob e) {
+                throw new InvalidJob(String.format("line %d: %s", k + 1, e.getMessage()));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Run jobs, concurrency at a time, their plots being computed in pool.
+     *
+     * Returns the number of jobs which failed.
+     */
+    static int run(List<Job> jobs, int concurrency, final ForkJoinPool pool) {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        CompletionService<Job> completion = new ExecutorCompletionService<Job>(executor);
+        for (final Job job: jobs) {
+            completion.submit(new Callable<Job>() {
+                @Override
+                public Job call() {
+                    current.set(job);
+                    long startedAt = System.currentTimeMillis();
+                    try {
+                        Plotter.run(job.args, pool);
+                    } catch (RuntimeException e) {
+                        job.fail(String.valueOf(e.getMessage()));
+                    } finally {
+                        current.remove();
+                        job.millis = System.currentTimeMillis() - startedAt;
+                    }
+                    return job;
+                }
+            });
+        }
+
+        int failed = 0;
+        try {
+            for (int k = 0; k < jobs.size(); k++) {
+                Job job = completion.take().get();
+                if (job.failed()) {
+                    failed++;
+                    System.err.println(String.format("Error: %s: %s", job.name, job.error));
+                } else {
+                    System.out.println(String.format("%s: %s (%d ms)", job.name,
+                                                     (job.result != null) ? job.result : "Done", job.millis));
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Plotter.fail("batch interrupted");
+            failed = jobs.size();
+        } finally {
+            executor.shutdownNow();
+        }
+        return failed;
+    }
+
+    /**
+     * Split a line of options into arguments, as a shell would (without escapes).
+     */
+    static List<String> split(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = null;
+        char quote = 0;
+        for (char c: line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    arg.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                } else {
+                    arg.append(c);
+                }
+            }
+        }
+        if (quote != 0) {
+            throw new InvalidJob("Unbalanced quotes!");
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    /**
+    * Json -- A reader of the subset of JSON describing jobs.
+    *
+    * A job is an object whose values are strings, numbers, booleans or
+    * null. Strings and numbers are values of options, true enables an
+    * option without value, false and null leave an option out.
+    */
+    private static class Json {
+        private final String text;
+        private int pos = 0;
+
+        Json(String text) {
+            this.text = text;
+        }
+
+        List<List<String>> readJobs() {
+            List<List<String>> jobs = new ArrayList<List<String>>();
+            this.expect('[');
+            if (!this.skip(']')) {
+                do {
+                    jobs.add(this.readObject());
+                } while (this.skip(','));
+                this.expect(']');
+            }
+            this.end();
+            return jobs;
+        }
+
+        List<String> readJob() {
+            List<String> args = this.readObject();
+            this.end();
+            return args;
+        }
+
+        private List<String> readObject() {
+            List<String> args = new ArrayList<String>();
+            this.expect('{');
+            if (this.skip('}')) {
+                return args;
+            }
+            do {
+                String name = this.readString();
+                this.expect(':');
+                if (this.skipWord("true")) {
+                    args.add("-" + name);
+                } else if (!this.skipWord("false") && !this.skipWord("null")) {
+                    args.add("-" + name);
+                    args.add(this.readValue());
+                }
+            } while (this.skip(','));
+            this.expect('}');
+            return args;
+        }
+
+        /**
+         * The next string or number.
+         */
+        private String readValue() {
+            this.blank();
+            if (this.pos < this.text.length() && this.text.charAt(this.pos) == '"') {
+                return this.readString();
+            }
+            int start = this.pos;
+            while (this.pos < this.text.length() && "+-.0123456789eE".indexOf(this.text.charAt(this.pos)) >= 0) {
+                this.pos++;
+            }
+            String value = this.text.substring(start, this.pos);
+            try {
+                Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new InvalidJob("Could not parse JSON value!");
+            }
+            return value;
+        }
+
+        private String readString() {
+            this.expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (this.pos < this.text.length()) {
+                char c = this.text.charAt(this.pos++);
+                if (c == '"') {
+                    return sb.toString();
+                } else if (c != '\\') {
+                    sb.append(c);
+                } else if (this.pos < this.text.length()) {
+                    char e = this.text.charAt(this.pos++);
+                    int k = "\"\\/bfnrt".indexOf(e);
+                    if (k >= 0) {
+                        sb.append("\"\\/\b\f\n\r\t".charAt(k));
+                    } else if (e == 'u' && this.pos + 4 <= this.text.length()) {
+                        try {
+                            sb.append((char)Integer.parseInt(this.text.substring(this.pos, this.pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            break;
+                        }
+                        this.pos += 4;
+                    } else {
+                        break;
+                    }
+                }
+            }
+            throw new InvalidJob("Could not parse JSON string!");
+        }
+
+        private void blank() {
+            while (this.pos < this.text.length() && Character.isWhitespace(this.text.charAt(this.pos))) {
+                this.pos++;
+            }
+        }
+
+        private boolean skip(char c) {
+            this.blank();
+            if (this.pos < this.text.length() && this.text.charAt(this.pos) == c) {
+                this.pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean skipWord(String word) {
+            this.blank();
+            if (this.text.startsWith(word, this.pos)) {
+                this.pos += word.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!this.skip(c)) {
+                throw new InvalidJob(String.format("Expected '%c' in JSON job!", c));
+            }
+        }
+
+        private void end() {
+            this.blank();
+            if (this.pos != this.text.length()) {
+                throw new InvalidJob("Unexpected content after JSON job!");
+            }
+        }
+    }
+}
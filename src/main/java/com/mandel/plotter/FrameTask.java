@@ -0,0 +1,107 @@
+package com.mandel.plotter;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.sets.BaseSet;
+
+
+/**
+* FrameTask -- A PlotTask computing a frame of a zoom animation.
+*
+* Values known from the previous frame are given beforehand, and only
+* the other pixels are computed. The values of the frame are kept in turn,
+* for the next one.
+*/
+class FrameTask extends PlotTask {
+
+    private final float[] values;
+    private final AtomicLong reused;
+
+    /**
+     * Build the task, values holding the known values of the frame and NaN for the others.
+     */
+    public FrameTask(BaseSet set, PlotArea area, Colorizer colorizer, BufferedImage img,
+                     int height, int width, float[] values) {
+        super(set, area, colorizer, img, height, width);
+        this.values = values;
+        this.reused = new AtomicLong();
+    }
+
+    /**
+     * The values of the whole frame.
+     */
+    public float[] getValues() {
+        return this.values;
+    }
+
+    /**
+     * Number of pixels whose value was known beforehand.
+     */
+    public long getReused() {
+        return this.reused.get();
+    }
+
+    /**
+     * The known values of a frame zoomed in by an integer factor from the previous one.
+     *
+     * Both frames have the same center and size in pixels, so that pixel
+     * (i, j) of the new frame is pixel ((z - 1) h / 2z + i / z, (z - 1) w / 2z + j / z)
+     * of the previous one, when those are integers. Other values are NaN.
+     */
+    static float[] zoomed(float[] previous, int height, int width, int factor) {
+        float[] values = new float[height * width];
+        Arrays.fill(values, Float.NaN);
+        for (int i = 0; i < height; i++) {
+            long row = (long)(factor - 1) * height + 2 * i;
+            if (row % (2 * factor) != 0) {
+                continue;
+            }
+            int from = (int)(row / (2 * factor)) * width;
+            for (int j = 0; j < width; j++) {
+                long col = (long)(factor - 1) * width + 2 * j;
+                if (col % (2 * factor) == 0) {
+                    values[i * width + j] = previous[from + (int)(col / (2 * factor))];
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    protected void computeLine(int i, int from, int to, double[] xs, float[] values, int[] line) {
+        int offset = i * this.width, n = 0;
+        for (int j = from; j < to; ++j) {
+            if (Float.isNaN(this.values[offset + j])) {
+                n++;
+            }
+        }
+        if (n == to - from) {
+            super.computeLine(i, from, to, xs, values, line);
+        } else {
+            // Only hand over the unknown pixels to the set
+            double[] todo = new double[n];
+            float[] computed = new float[n];
+            n = 0;
+            for (int j = from; j < to; ++j) {
+                if (Float.isNaN(this.values[offset + j])) {
+                    todo[n++] = xs[j - from];
+                }
+            }
+            this.set.containsLine(todo, this.y(i), computed, n);
+            n = 0;
+            for (int j = from; j < to; ++j) {
+                float val = this.values[offset + j];
+                if (Float.isNaN(val)) {
+                    val = computed[n++];
+                }
+                values[j - from] = val;
+                line[j - from] = this.color(val);
+            }
+            this.reused.addAndGet(to - from - n);
+        }
+        System.arraycopy(values, 0, this.values, offset + from, to - from);
+    }
+}
@@ -106,6 +106,22 @@ public class OptionsBuilder {
         }
     }
 
+    public Double getDouble(String name) throws NumberFormatException {
+        String s;
+        if (this.cmd.hasOption(name)) {
+            s = this.cmd.getOptionValue(name);
+        } else if (this.optionsMap.containsKey(name)) {
+            s = this.optionsMap.get(name).defVal;
+        } else {
+            return null;
+        }
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     public void showHelp(String syntax, String header, String footer) {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp(120, syntax, header, this.options, footer, true);
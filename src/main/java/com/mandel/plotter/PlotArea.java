@@ -1,12 +1,20 @@
 package com.mandel.plotter;
 
+import java.math.BigDecimal;
+
 
 /**
 * PlotArea -- A quadruplet of numbers defining a plot rectangulare area.
+*
+* An area can also be defined by its center and radius, in which case the
+* center is kept with arbitrary precision for deep zooms, the double bounds
+* being mere approximations.
 */
 public class PlotArea {
 
     public double left, right, bottom, top;
+    private final BigDecimal centerX, centerY;
+    private final double width, height;
 
     public static class InvalidArea extends IllegalArgumentException {
         public InvalidArea(String message) {
@@ -19,15 +27,80 @@ public class PlotArea {
         this.right = right;
         this.bottom = bottom;
         this.top = top;
+        this.centerX = this.centerY = null;
+        this.width = right - left;
+        this.height = top - bottom;
+    }
+
+    /**
+     * Build the square area of given center and radius.
+     */
+    public PlotArea(BigDecimal centerX, BigDecimal centerY, double radius) {
+        this(centerX, centerY, 2 * radius, 2 * radius);
+    }
+
+    private PlotArea(BigDecimal centerX, BigDecimal centerY, double width, double height) {
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.width = width;
+        this.height = height;
+        this.left = centerX.doubleValue() - width / 2;
+        this.right = centerX.doubleValue() + width / 2;
+        this.bottom = centerY.doubleValue() - height / 2;
+        this.top = centerY.doubleValue() + height / 2;
+    }
+
+    public BigDecimal getCenterX() {
+        return (this.centerX != null) ? this.centerX : new BigDecimal((this.left + this.right) / 2);
+    }
+
+    public BigDecimal getCenterY() {
+        return (this.centerY != null) ? this.centerY : new BigDecimal((this.bottom + this.top) / 2);
+    }
+
+    public double getWidth() {
+        return this.width;
+    }
+
+    public double getHeight() {
+        return this.height;
+    }
+
+    /**
+     * The area with the same center, zoomed in by factor.
+     */
+    public PlotArea zoom(double factor) {
+        return new PlotArea(this.getCenterX(), this.getCenterY(), this.width / factor, this.height / factor);
+    }
+
+    /**
+     * The same area, with coordinates relative to its center.
+     */
+    public PlotArea relative() {
+        return new PlotArea(-this.width / 2, this.width / 2, -this.height / 2, this.height / 2);
     }
 
     /**
      * Build a PlotArea defined by a string parameter.
+     *
+     * Either four numbers "left;right;bottom;top", or three numbers
+     * "x;y;radius" defining a square centered on x + iy. In the latter
+     * case, the center may be given with any precision.
      */
     public static PlotArea parse(String arg) {
         String[] parts = arg.split(";");
-        if (parts.length != 4) {
-            throw new InvalidArea("Area should consist of four numbers!");
+        if (parts.length == 3) {
+            try {
+                double radius = Double.parseDouble(parts[2]);
+                if (!(radius > 0)) {
+                    throw new InvalidArea("Area radius should be positive!");
+                }
+                return new PlotArea(new BigDecimal(parts[0].trim()), new BigDecimal(parts[1].trim()), radius);
+            } catch (NumberFormatException e) {
+                throw new InvalidArea("Could not parse plot area!");
+            }
+        } else if (parts.length != 4) {
+            throw new InvalidArea("Area should consist of four numbers, or three for a center and radius!");
         }
         double left, right, bottom, top;
         try {
@@ -1,11 +1,15 @@
 package com.mandel.plotter;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.mandel.colorizer.Colorizer;
 import com.mandel.sets.BaseSet;
@@ -13,98 +17,362 @@ import com.mandel.sets.BaseSet;
 
 /**
 * PlotTask -- A task that plot workers should run in order to build the plot.
+*
+* The image is split into tiles processed by a ForkJoinPool, idle workers
+* stealing tiles from busy ones. Tiles whose rows turn out to be expensive
+* are split further while being computed, so that costly areas (such as the
+* interior of the set) get spread over all workers.
+*
+* Pixels are written straight into the int array backing the image,
+* which must therefore be of TYPE_INT_RGB. Alternatively, the plot can be
+* streamed by bands of rows, so that the whole image is never held in memory.
 */
-class PlotTask implements Runnable {
-    private PlotArea area;
-    private BufferedImage img;
-    private Colorizer colorizer;
-    private LinesSet lines;
-    private BaseSet set;
-    private int height, width, bufferSize;
+class PlotTask {
+
+    // Initial tiles are split until they hold at most that many pixels
+    static final int TILE_PIXELS = 64 * 64;
+    // Remaining rows of a tile are split if a row takes longer than that
+    static final long SPLIT_NANOS = 200000;
+    // Height of the bands of rows streamed to the output
+    static final int BAND_HEIGHT = 64;
+    // Smallest palette for smooth values, finer than the steps of a gradient
+    static final int SMOOTH_PALETTE = 4096;
+
+    protected PlotArea area;
+    protected BufferedImage img;
+    protected int[] pixels;
+    protected int[] palette;
+    protected Colorizer colorizer;
+    protected BaseSet set;
+    protected int height, width;
+    protected RawFile.Writer raw;
+    protected RenderMetrics metrics;
+    private final AtomicLong done;
 
     /**
-    * LinesSet -- A structure allowing simple iteration over the range [0, size -1]
+    * Tile -- Computes the rectangle [left, right[ x [top, bottom[ of the plot.
+    *
+    * Pixels are stored into the buffers of the band target.
     */
-    private static class LinesSet {
-        private final int init_size;
-        private int pos;
+    private class Tile extends RecursiveAction {
+        private final int left, top, right;
+        private int bottom;
+        private final Band target;
 
-        public LinesSet(int size) {
-            this.init_size = size;
-            this.pos = 0;
+        Tile(int left, int top, int right, int bottom, Band target) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.target = target;
         }
 
-        /**
-         * Pop a batch of lines for further processing.
-         *
-         * This method can be called concurrently by multiple worker threads.
-         */
-        public synchronized List<Integer> popLines(int count) {
-            if (this.pos >= this.init_size) {
-                return null;
+        @Override
+        protected void compute() {
+            int w = this.right - this.left, h = this.bottom - this.top;
+            if ((long)w * h > TILE_PIXELS) {
+                // Split along the longest side
+                if (w > h) {
+                    int mid = this.left + w / 2;
+                    invokeAll(new Tile(this.left, this.top, mid, this.bottom, this.target),
+                              new Tile(mid, this.top, this.right, this.bottom, this.target));
+                } else {
+                    int mid = this.top + h / 2;
+                    invokeAll(new Tile(this.left, this.top, this.right, mid, this.target),
+                              new Tile(this.left, mid, this.right, this.bottom, this.target));
+                }
+                return;
+            }
+
+            long busySince = System.nanoTime();
+            RenderMetrics.Work work = (metrics != null) ? new RenderMetrics.Work() : null;
+            List<Tile> forked = new LinkedList<Tile>();
+            double[] xs = new double[w];
+            float[] values = new float[w];
+            int[] line = new int[w];
+            for (int j = this.left; j < this.right; j++) {
+                xs[j - this.left] = x(j);
+            }
+            for (int i = this.top; i < this.bottom; i++) {
+                long startedAt = System.nanoTime();
+                computeLine(i, this.left, this.right, xs, values, line);
+                int offset = (i - this.target.top) * width + this.left;
+                System.arraycopy(line, 0, this.target.pixels, offset, w);
+                if (this.target.values != null) {
+                    System.arraycopy(values, 0, this.target.values, offset, w);
+                }
+                if (work != null) {
+                    metrics.count(values, 0, w, work);
+                    work.rows++;
+                    work.pixels += w;
+                }
+                progress(w);
+                int remaining = this.bottom - i - 1;
+                if (remaining >= 2 && System.nanoTime() - startedAt > SPLIT_NANOS
+                    && getSurplusQueuedTaskCount() == 0) {
+                    // Expensive rows and idle workers: hand over half of the remaining rows
+                    int mid = this.bottom - remaining / 2;
+                    Tile tile = new Tile(this.left, mid, this.right, this.bottom, this.target);
+                    tile.fork();
+                    forked.add(tile);
+                    this.bottom = mid;
+                }
             }
-            List<Integer> L = new ArrayList<Integer>();
-            while (L.size() <= count && this.pos != this.init_size) {
-                L.add(this.pos);
-                this.pos++;
+            if (work != null) {
+                work.busy = System.nanoTime() - busySince;
+                metrics.add(work);
             }
-            if (this.init_size >= 100 && this.pos % (this.init_size / 100) == 0) {
-                Plotter.info('.');
+            for (Tile tile: forked) {
+                tile.join();
             }
-            return L;
+        }
+    }
+
+    /**
+    * Band -- Computes the rows [top, bottom[ of the plot into its own buffers.
+    *
+    * Values are only kept if needed for the raw output.
+    */
+    private class Band extends RecursiveAction {
+        private final int top, bottom;
+        private final int[] pixels;
+        private final float[] values;
+
+        Band(int top, int bottom, int[] pixels, float[] values) {
+            this.top = top;
+            this.bottom = bottom;
+            this.pixels = pixels;
+            this.values = values;
+        }
+
+        Band(int top, int bottom) {
+            this(top, bottom, new int[(bottom - top) * width],
+                 (raw != null) ? new float[(bottom - top) * width] : null);
+        }
+
+        @Override
+        protected void compute() {
+            new Tile(0, this.top, width, this.bottom, this).invoke();
         }
     }
 
     public PlotTask(BaseSet set, PlotArea area, Colorizer colorizer, BufferedImage img,
-                      int linesCnt, int height, int width, int bufferSize) {
+                    int height, int width) {
         this.area = area;
-        this.bufferSize = bufferSize;
         this.colorizer = colorizer;
         this.height = height;
         this.img = img;
-        this.lines = new LinesSet(linesCnt);
+        // Without image, the plot can only be streamed
+        this.pixels = (img != null) ? ((DataBufferInt)img.getRaster().getDataBuffer()).getData() : null;
+        this.palette = colorizer.getPalette(paletteSize(set.getIterations(), set.isSmooth()));
         this.set = set;
         this.width = width;
+        this.done = new AtomicLong();
+    }
+
+    /**
+     * Also dump the values of the plot to raw, when it is streamed.
+     */
+    public void setRawOutput(RawFile.Writer raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * Record timings and counters of the plot into metrics.
+     */
+    public void setMetrics(RenderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The pixels of the whole plot, null if it is streamed.
+     */
+    public int[] getPixels() {
+        return this.pixels;
+    }
+
+    /**
+     * The action computing the whole plot.
+     */
+    protected ForkJoinTask<?> createRoot() {
+        return new Tile(0, 0, this.width, this.height, new Band(0, this.height, this.pixels, null));
+    }
+
+    /**
+     * Compute the colors of line i in the range [from, to[ into line, xs holding their abscissas.
+     *
+     * The whole range is handed over to the set at once, so that it may be
+     * vectorized, values being gathered into the buffer values.
+     */
+    protected void computeLine(int i, int from, int to, double[] xs, float[] values, int[] line) {
+        long startedAt = (this.metrics != null) ? System.nanoTime() : 0;
+        this.set.containsLine(xs, this.y(i), values, to - from);
+        long computedAt = (this.metrics != null) ? System.nanoTime() : 0;
+        for (int j = from; j < to; ++j) {
+            line[j - from] = this.color(values[j - from]);
+        }
+        if (this.metrics != null) {
+            this.metrics.addTime(RenderMetrics.COMPUTE, computedAt - startedAt);
+            this.metrics.addTime(RenderMetrics.COLORIZE, System.nanoTime() - computedAt);
+        }
+    }
+
+    /**
+     * Compute the value of the pixel at line i and column j.
+     */
+    protected float compute(int i, int j) {
+        return this.set.contains(this.x(j), this.y(i));
     }
 
-    @Override
-    public void run() {
-        List<Integer> lines;
-        while ((lines = this.lines.popLines(this.bufferSize)) != null) {
-            for (int i: lines) {
-                for (int j = 0; j < this.width; ++j) {
-                    float indice = this.set.contains(
-                        this.area.left + (this.area.right - this.area.left) * j / this.width,
-                        this.area.top + (this.area.bottom - this.area.top) * i / this.height);
-                    this.img.setRGB(j, i, colorizer.getColor(indice).getRGB());
+    protected double x(int j) {
+        return this.area.left + (this.area.right - this.area.left) * j / this.width;
+    }
+
+    protected double y(int i) {
+        return this.area.top + (this.area.bottom - this.area.top) * i / this.height;
+    }
+
+    /**
+     * Number of palette steps for values computed with the given iterations.
+     *
+     * Values are i / iterations, so that they match a palette entry, unless
+     * they are smooth: the palette is then fine enough for colors not to band.
+     */
+    static int paletteSize(int iterations, boolean smooth) {
+        return Math.max(iterations, smooth ? SMOOTH_PALETTE : 1);
+    }
+
+    /**
+     * Color of a value, looked up in the palette.
+     */
+    protected int color(float val) {
+        return color(this.palette, val);
+    }
+
+    static int color(int[] palette, float val) {
+        return palette[(int)(val * (palette.length - 1) + 0.5)];
+    }
+
+    /**
+     * Record that some pixels are done, displaying a dot every percent.
+     */
+    protected void progress(int pixels) {
+        long total = (long)this.width * this.height;
+        long before = this.done.getAndAdd(pixels);
+        if (total >= 100 && (before + pixels) * 100 / total > before * 100 / total) {
+            Plotter.info('.');
+        }
+    }
+
+    /**
+     * Executes the task on multiple threads, rows being written to writer as they are completed.
+     *
+     * The plot is computed by bands of rows, which are then compressed
+     * as blocks by the same threads. Bands are computed and compressed
+     * concurrently, but at most a few more than numThreads are kept in
+     * memory while waiting for the previous ones to be written.
+     */
+    public List<String> startStreaming(int numThreads, PngWriter writer) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            return this.startStreaming(pool, numThreads, writer);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Executes the task in an existing pool, rows being written to writer as they are completed.
+     *
+     * At most a few more than numThreads bands are computed at once, so
+     * that the pool may be shared with other plots.
+     */
+    public List<String> startStreaming(ForkJoinPool pool, int numThreads, PngWriter writer) throws IOException {
+        List<String> errs = new ArrayList<String>();
+        LinkedList<Band> bands = new LinkedList<Band>();
+        LinkedList<ForkJoinTask<PngWriter.Block>> blocks = new LinkedList<ForkJoinTask<PngWriter.Block>>();
+        // Last band handed over for compression, needed to compress the next one
+        Band last = null;
+        int next = 0;
+        try {
+            while (next < this.height || !bands.isEmpty() || !blocks.isEmpty()) {
+                while (next < this.height && bands.size() + blocks.size() <= numThreads) {
+                    Band band = new Band(next, Math.min(next + BAND_HEIGHT, this.height));
+                    pool.execute(band);
+                    bands.add(band);
+                    next = band.bottom;
+                }
+                if (!blocks.isEmpty() && (bands.isEmpty() || blocks.getFirst().isDone())) {
+                    writer.write(blocks.removeFirst().join());
+                } else {
+                    Band band = bands.removeFirst();
+                    band.join();
+                    if (this.raw != null) {
+                        long startedAt = System.nanoTime();
+                        this.raw.write(band.top, band.bottom - band.top, band.values);
+                        if (this.metrics != null) {
+                            this.metrics.addTime(RenderMetrics.WRITE, System.nanoTime() - startedAt);
+                        }
+                    }
+                    int previousRows = (last != null) ? last.bottom - last.top : 0;
+                    blocks.add(pool.submit(writer.compressTask(
+                        band.pixels, 0, band.bottom - band.top,
+                        (last != null) ? last.pixels : null, previousRows * this.width, previousRows)));
+                    last = band;
                 }
             }
+        } catch (RuntimeException e) {
+            errs.add(errorMessage(e));
+        } finally {
+            // Pending bands are of no use anymore
+            for (Band band: bands) {
+                band.cancel(true);
+            }
+            for (ForkJoinTask<PngWriter.Block> block: blocks) {
+                block.cancel(true);
+            }
         }
+        return errs;
     }
 
     /**
      * Executes the task on multiple threads.
      */
     public List<String> startParallel(int numThreads) {
-        Thread[] threads = new Thread[numThreads];
-
-        final List<String> threadErrs = Collections.synchronizedList(new ArrayList<String>());
-        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
-            public void uncaughtException(Thread t, Throwable e) {
-                threadErrs.add(e.getMessage());
-            }
-        });
-        for (int i = 0; i < numThreads; i++) {
-            threads[i] = new Thread(this);
-            threads[i].start();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            return this.startParallel(pool);
+        } finally {
+            pool.shutdown();
         }
-        for (Thread t: threads) {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                threadErrs.add(e.getMessage());
-            }
+    }
+
+    /**
+     * Executes the task in an existing pool.
+     */
+    public List<String> startParallel(ForkJoinPool pool) {
+        List<String> errs = new ArrayList<String>();
+        try {
+            pool.invoke(this.createRoot());
+        } catch (RuntimeException e) {
+            errs.add(errorMessage(e));
         }
-        return threadErrs;
+        return errs;
+    }
+
+    /**
+     * Message of an exception thrown by a worker.
+     */
+    static String errorMessage(RuntimeException e) {
+        return unwrap(e).getMessage();
+    }
+
+    /**
+     * The exception thrown by a worker, from the one rethrown by the pool.
+     */
+    static RuntimeException unwrap(RuntimeException e) {
+        // Exceptions thrown by workers may be wrapped into a copy
+        Throwable cause = e.getCause();
+        return (cause != null && cause.getClass() == e.getClass()) ? (RuntimeException)cause : e;
     }
 }
@@ -3,14 +3,30 @@ package com.mandel.plotter;
 import java.awt.Color;
 import java.awt.Desktop;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
-import javax.imageio.ImageIO;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.ParseException;
 
 import com.mandel.colorizer.*;
+import com.mandel.parser.AST;
+import com.mandel.parser.BaseNode;
+import com.mandel.parser.Optimizer;
 import com.mandel.sets.*;
 
 
@@ -20,7 +36,17 @@ import com.mandel.sets.*;
 public class Plotter {
     static boolean verbose = false;
 
+    // Below those pixel spacings, double and double-double precisions are not enough
+    static final double DOUBLE_SPACING = 1e-13, DOUBLE_DOUBLE_SPACING = 1e-28;
+
     public static void run(String[] args) {
+        run(args, null);
+    }
+
+    /**
+     * Run the command given by args, plots being computed in pool unless null (see Batch).
+     */
+    static void run(String[] args, ForkJoinPool pool) {
 
         OptionsBuilder options = new OptionsBuilder();
         options.addOption("h", "display this help menu")
@@ -28,11 +54,29 @@ public class Plotter {
                .addOption("set", "name of the set to plot", MandelbrotSet.ID)
                .addOption("resolution", "resolution in pixels per unit", "250.0")
                .addOption("iter", "number of iterations", "80")
-               .addOption("area", "area to plot (e.g. \"-1.5;1.5;1;1\"), or \"auto\" for autoscaling", "auto")
+               .addOption("area", "area to plot (e.g. \"-1.5;1.5;1;1\"), or \"x;y;radius\" for a square centered on x + iy, or \"auto\" for autoscaling", "auto")
                .addOption("color", "plot color, either '#xxxxxx,#xxxxxx' for a bicolor plot or '#xxxxxx..#xxxxxx' for a gradient", "#000000..#ffffff")
                .addOption("param", "extra parameter defining the fractal to plot (e.g. \"-0.4;0.6\" to define Julia set parameter)", "")
                .addOption("transformation", "custom transformation to be used instead of `z^2 + c`", "")
-               .addOption("j", "control parallelism (number of threads)", "4")
+               .addOption("smooth", "smooth coloring (continuous iteration count), either 'on' or 'off'", "off")
+               .addOption("bailout", "bailout radius, at least 2 (larger radii give a better smooth coloring)", "2")
+               .addOption("periodicity", "orbit periodicity checking, either 'on', 'off' or a tolerance (e.g. \"1e-10\")", "on")
+               .addOption("strategy", "rendering strategy, either 'lines', 'subdivide' (Mariani-Silver algorithm) or 'progressive' (coarse to fine, saving previews)", "lines")
+               .addOption("simd", "SIMD kernel for the built-in transformation, either 'on' or 'off' (needs java --add-modules jdk.incubator.vector)", "off")
+               .addOption("compression", "PNG compression level, from 0 (fastest) to 9 (smallest)",
+                          String.valueOf(PngWriter.DEFAULT_LEVEL))
+               .addOption("raw", "name of a file to dump the raw values of the plot to, so that it can be colored again", "")
+               .addOption("recolor", "name of a raw file to color (see -raw), instead of computing a plot", "")
+               .addOption("frames", "number of frames of a zoom animation on the center of the area (saved as f_0000.png, ...)", "1")
+               .addOption("zoom", "zoom factor from one frame of an animation to the next", "2")
+               .addOption("metrics", "name of a JSON file to save timings and counters of the plot to", "")
+               .addOption("batch", "name of a job file, each line holding the options of a plot, to run all of them in a single process", "")
+               .addOption("jobs", "number of jobs of a batch run at once, sharing the threads of -j", "1")
+               .addOption("serve", "port to serve tiles on at /{set}/{z}/{x}/{y}.png (e.g. 8080), instead of plotting", "")
+               .addOption("cache", "name of a directory to cache served tiles in, in addition to memory", "")
+               .addOption("maxiter", "largest number of iterations of served tiles (defaults to -iter)", "")
+               .addOption("j", "control parallelism (number of threads)",
+                          String.valueOf(Runtime.getRuntime().availableProcessors()))
                .addOption("v", "verbose mode");
 
         try {
@@ -42,7 +86,10 @@ public class Plotter {
             return;
         }
 
-        verbose = options.getBool("v");
+        if (pool == null) {
+            // Jobs of a batch follow the verbosity of the batch
+            verbose = options.getBool("v");
+        }
 
         if (options.getBool("h")) {
             options.showHelp("java -jar Mandel.jar",
@@ -52,7 +99,7 @@ public class Plotter {
             return;
         }
 
-        Float res = options.getFloat("resolution");
+        Double res = options.getDouble("resolution");
         if (res == null) {
             fail("could not parse supplied value for 'resolution'");
             return;
@@ -65,21 +112,142 @@ public class Plotter {
         }
 
         Integer numThreads = options.getInteger("j");
-        if (numThreads == null) {
+        if (numThreads == null || numThreads < 1) {
             fail("could not parse supplied value for 'j'");
             return;
         }
 
+        Integer compression = options.getInteger("compression");
+        if (compression == null || compression < 0 || compression > 9) {
+            fail("could not parse supplied value for 'compression'");
+            return;
+        }
+
+        String strategy = options.get("strategy");
+        if (!strategy.equals("lines") && !strategy.equals(SubdivisionTask.ID) && !strategy.equals(ProgressiveTask.ID)) {
+            fail(String.format("unrecognized strategy '%s'", strategy));
+            return;
+        }
+
+        String simd = options.get("simd");
+        if (!simd.equals("on") && !simd.equals("off")) {
+            fail("could not parse supplied value for 'simd'");
+            return;
+        }
+
+        Integer frames = options.getInteger("frames");
+        if (frames == null || frames < 1) {
+            fail("could not parse supplied value for 'frames'");
+            return;
+        }
+
+        Double zoom = options.getDouble("zoom");
+        if (zoom == null || !(zoom > 0)) {
+            fail("could not parse supplied value for 'zoom'");
+            return;
+        }
+
+        String smooth = options.get("smooth");
+        if (!smooth.equals("on") && !smooth.equals("off")) {
+            fail("could not parse supplied value for 'smooth'");
+            return;
+        }
+
+        Double bailout = options.getDouble("bailout");
+        if (bailout == null) {
+            fail("could not parse supplied value for 'bailout'");
+            return;
+        }
+
+        Double periodicity;
+        switch (options.get("periodicity")) {
+            case "on":
+                periodicity = BaseSet.DEFAULT_PERIODICITY;
+                break;
+            case "off":
+                periodicity = 0.;
+                break;
+            default:
+                try {
+                    periodicity = Double.parseDouble(options.get("periodicity"));
+                } catch (NumberFormatException e) {
+                    fail("could not parse supplied value for 'periodicity'");
+                    return;
+                }
+        }
+
+        if (!options.get("batch").equals("")) {
+            if (pool != null) {
+                fail("a job cannot run a batch");
+                return;
+            }
+            Integer jobs = options.getInteger("jobs");
+            if (jobs == null || jobs < 1) {
+                fail("could not parse supplied value for 'jobs'");
+                return;
+            }
+            batch(new File(options.get("batch")), jobs, numThreads);
+            return;
+        }
+
+        if (!options.get("serve").equals("")) {
+            if (pool != null) {
+                fail("a job cannot serve tiles");
+                return;
+            }
+            serve(options, iterations, numThreads, compression, periodicity, bailout, smooth.equals("on"));
+            return;
+        }
+
+        if (!options.get("recolor").equals("")) {
+            try {
+                Colorizer colorizer = ColorizerBuilder.parse(options.get("color"));
+                recolor(new File(options.get("recolor")), colorizer, options.get("f"), numThreads, compression);
+            } catch (IllegalArgumentException e) {
+                fail(e.getMessage());
+            }
+            return;
+        }
+
         try {
+            long buildStartedAt = System.nanoTime();
             BaseSet set = SetBuilder.build(options.get("set"),
                                            options.get("transformation"),
                                            options.get("param"),
                                            iterations);
+            set.setPeriodicity(periodicity);
+            set.setBailout(bailout);
+            set.setSmooth(smooth.equals("on"));
+            set.setVectorized(simd.equals("on"));
+            if (simd.equals("on") && !BaseSet.isVectorAvailable()) {
+                info("SIMD kernel unavailable, run with --add-modules jdk.incubator.vector to enable it");
+            }
+            if (verbose && !options.get("transformation").equals("")) {
+                BaseNode tree = AST.parse(options.get("transformation")).reduce();
+                info("Transformation:");
+                tree.prettyPrint();
+                info("Optimized transformation:");
+                Optimizer.optimize(tree).prettyPrint();
+            }
             PlotArea area = (options.get("area").equals("auto"))
                                 ? set.getDefaultArea() : PlotArea.parse(options.get("area"));
+            RenderMetrics metrics = null;
+            if (!options.get("metrics").equals("")) {
+                metrics = new RenderMetrics(iterations, set.isSmooth());
+                set.setCounting(true);
+                metrics.addTime(RenderMetrics.BUILD, System.nanoTime() - buildStartedAt);
+            }
 
             Colorizer colorizer = ColorizerBuilder.parse(options.get("color"));
-            plot(set, area, res, colorizer, options.get("f"), numThreads);
+            if (frames > 1) {
+                if (metrics != null) {
+                    info("Metrics are only saved for single plots");
+                }
+                animate(set, area, res, colorizer, options.get("f"), numThreads, compression, frames, zoom, pool);
+            } else {
+                plot(set, area, res, colorizer, options.get("f"), numThreads, strategy, compression,
+                     options.get("raw"), metrics, options.get("metrics"), pool);
+            }
 
         } catch (IllegalArgumentException e) {
             fail(e.getMessage());
@@ -88,6 +256,11 @@ public class Plotter {
     }
 
     public static void fail(String msg) {
+        Batch.Job job = Batch.current();
+        if (job != null) {
+            job.fail(msg);
+            return;
+        }
         System.err.println("Error: " + msg);
     }
 
@@ -103,38 +276,518 @@ public class Plotter {
         }
     }
 
-    private static void plot(BaseSet set, PlotArea area, float res,
-                             Colorizer colorizer, String f, int numThreads) {
+    private static void plot(BaseSet set, PlotArea area, double res,
+                             Colorizer colorizer, String f, int numThreads, String strategy,
+                             int compression, String raw, RenderMetrics metrics, String metricsFile,
+                             ForkJoinPool pool) {
+        long startedAt = System.currentTimeMillis();
+
+        int width = (int)Math.floor(area.getWidth() * res);
+        int height = (int)Math.floor(area.getHeight() * res);
+
+        long buildStartedAt = System.nanoTime();
+        BaseSet precise = precise(set, area, 1 / res);
+        if (precise != set) {
+            set = precise;
+            area = area.relative();
+        }
+        if (metrics != null) {
+            // Reference orbits of perturbation are computed here
+            metrics.addTime(RenderMetrics.BUILD, System.nanoTime() - buildStartedAt);
+        }
+
         info("Plotting " + set + "...");
 
-        long startedAt = System.currentTimeMillis();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                String.format("Width (%d) and height (%d) cannot be <= 0", width, height));
+        }
+
+        File fil = new File(f);
+        File rawFil = raw.equals("") ? null : new File(raw);
+        List<String> threadErrs;
+        if (metrics != null) {
+            metrics.start();
+        }
+        try {
+            RawFile.Writer rawWriter = (rawFil != null)
+                                           ? new RawFile.Writer(rawFil, width, height, set.getIterations(),
+                                                                  set.isSmooth()) : null;
+            try {
+                if (!strategy.equals("lines")) {
+                    // Subdivision and progressive plots need the whole plot at hand
+                    ForkJoinPool plotPool = (pool != null) ? pool : new ForkJoinPool(numThreads);
+                    try {
+                        if (!plotWhole(set, area, colorizer, fil, width, height, strategy, compression,
+                                       rawWriter, metrics, plotPool)) {
+                            if (rawFil != null) {
+                                rawFil.delete();
+                            }
+                            return;
+                        }
+                    } finally {
+                        if (plotPool != pool) {
+                            plotPool.shutdownNow();
+                        }
+                    }
+                } else {
+                    // Rows are written to the output file as soon as they are computed
+                    PlotTask task = new PlotTask(set, area, colorizer, null, height, width);
+                    task.setRawOutput(rawWriter);
+                    task.setMetrics(metrics);
+                    PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(fil)),
+                                                     width, height, compression);
+                    writer.setMetrics(metrics);
+                    info(String.format("Computing plot with %d threads...", numThreads));
+                    try {
+                        threadErrs = (pool != null) ? task.startStreaming(pool, numThreads, writer)
+                                                    : task.startStreaming(numThreads, writer);
+                    } catch (IOException e) {
+                        writer.abort();
+                        throw e;
+                    }
+                    if (!threadErrs.isEmpty()) {
+                        writer.abort();
+                        fil.delete();
+                        if (rawFil != null) {
+                            rawFil.delete();
+                        }
+                        // Just display the first error
+                        fail(threadErrs.get(0));
+                        return;
+                    }
+                    info("\nGenerating output file...");
+                    writer.close();
+                }
+            } finally {
+                if (rawWriter != null) {
+                    rawWriter.close();
+                }
+            }
+        } catch (IOException e) {
+            fil.delete();
+            if (rawFil != null) {
+                rawFil.delete();
+            }
+            fail("could not generate image file\n" + e.getMessage());
+            return;
+        }
 
-        int width = (int)Math.floor((area.right - area.left) * res);
-        int height = (int)Math.floor((area.top - area.bottom) * res);
+        if (metrics != null) {
+            metrics.stop();
+            try {
+                metrics.write(new File(metricsFile), width, height, numThreads);
+            } catch (IOException e) {
+                fail("could not save metrics\n" + e.getMessage());
+            }
+        }
+        open(fil);
+        info(String.format("Plot ended in %d ms",
+             System.currentTimeMillis() - startedAt));
+    }
 
+    /**
+     * Plot with a strategy computing the whole plot before writing it, returning false on failure.
+     *
+     * Progressive plots are also saved as f after each pass but the last,
+     * at the resolution of the pass, so that a preview is soon available.
+     * On failure, f is deleted.
+     */
+    private static boolean plotWhole(BaseSet set, PlotArea area, Colorizer colorizer, final File fil,
+                                     final int width, final int height, String strategy, int compression,
+                                     RawFile.Writer rawWriter, RenderMetrics metrics, final ForkJoinPool pool)
+            throws IOException {
         BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        PlotTask task = new PlotTask(set, area, colorizer, img, height, height, width, 1);
-
-        info(String.format("Computing plot with %d threads...", numThreads));
-        final List<String> threadErrs = task.startParallel(numThreads);
+        info(String.format("Computing plot with %d threads...", pool.getParallelism()));
+        PlotTask task;
+        float[] values;
+        List<String> threadErrs;
+        if (strategy.equals(SubdivisionTask.ID)) {
+            SubdivisionTask subdivision = new SubdivisionTask(set, area, colorizer, img, height, width);
+            // Pixels are colored as they are computed, which is timed as computing
+            subdivision.setMetrics(metrics);
+            threadErrs = subdivision.startParallel(pool);
+            if (width * height > 0) {
+                info(String.format("%.1f%% of pixels skipped by subdivision",
+                     100. * subdivision.getSkipped() / ((long)width * height)));
+            }
+            if (metrics != null && threadErrs.isEmpty()) {
+                // Iterations are counted as pixels are computed, but all of them go into the histogram
+                RenderMetrics.Work counts = new RenderMetrics.Work();
+                metrics.histogram(subdivision.getValues(), 0, width * height, counts);
+                metrics.addCounts(counts);
+            }
+            task = subdivision;
+            values = subdivision.getValues();
+        } else {
+            final long startedAt = System.currentTimeMillis();
+            ProgressiveTask progressive = new ProgressiveTask(set, area, colorizer, img, height, width);
+            progressive.setMetrics(metrics);
+            progressive.setListener(new ProgressiveTask.Listener() {
+                @Override
+                public void passDone(int pass, int passes, int[] pixels) throws IOException {
+                    if (pass < passes - 1) {
+                        writePreview(pixels, fil, width, height, ProgressiveTask.STRIDES[pass], pool);
+                        info(String.format("\nPreview %d saved in %s after %d ms", pass + 1, fil,
+                             System.currentTimeMillis() - startedAt));
+                    }
+                }
+            });
+            threadErrs = progressive.startProgressive(pool);
+            task = progressive;
+            values = progressive.getValues();
+        }
 
         if (!threadErrs.isEmpty()) {
+            // Previews of the plot must not be taken for the result
+            fil.delete();
             // Just display the first error
             fail(threadErrs.get(0));
-            return;
+            return false;
         }
 
         info("\nGenerating output file...");
 
+        if (rawWriter != null) {
+            long writeStartedAt = System.nanoTime();
+            rawWriter.write(0, height, values);
+            if (metrics != null) {
+                metrics.addTime(RenderMetrics.WRITE, System.nanoTime() - writeStartedAt);
+            }
+        }
+        PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(fil)),
+                                         width, height, compression);
+        writer.setMetrics(metrics);
+        try {
+            writer.writeImage(task.getPixels(), pool);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        writer.close();
+        return true;
+    }
+
+    /**
+     * Save one pixel out of stride in both directions as fil, replacing it at once.
+     *
+     * The preview only holds computed pixels, so that it is small and
+     * quickly compressed. It replaces fil at once, so that viewers never
+     * see a partial image.
+     */
+    private static void writePreview(int[] pixels, File fil, int width, int height, int stride, ForkJoinPool pool)
+            throws IOException {
+        int w = (width + stride - 1) / stride, h = (height + stride - 1) / stride;
+        int[] preview = new int[w * h];
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                preview[i * w + j] = pixels[i * stride * width + j * stride];
+            }
+        }
+        File tmp = File.createTempFile(fil.getName(), ".tmp", fil.getAbsoluteFile().getParentFile());
+        try {
+            PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(tmp)), w, h, 1);
+            try {
+                writer.writeImage(preview, pool);
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+            writer.close();
+            Files.move(tmp.toPath(), fil.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Serve tiles over HTTP until the process is killed.
+     */
+    private static void serve(OptionsBuilder options, int iterations, int numThreads, int compression,
+                              double periodicity, double bailout, boolean smooth) {
+        Integer port = options.getInteger("serve");
+        if (port == null || port < 0 || port > 65535) {
+            fail("could not parse supplied value for 'serve'");
+            return;
+        }
+        Integer maxIterations = options.get("maxiter").equals("") ? iterations : options.getInteger("maxiter");
+        if (maxIterations == null || maxIterations < 1) {
+            fail("could not parse supplied value for 'maxiter'");
+            return;
+        }
+        try {
+            // Checked once for all, as well as the tiles of the default set
+            ColorizerBuilder.parse(options.get("color"));
+            SetBuilder.build(options.get("set"), options.get("transformation"), options.get("param"), iterations)
+                      .setBailout(bailout);
+        } catch (IllegalArgumentException e) {
+            fail(e.getMessage());
+            return;
+        }
+
+        File dir = options.get("cache").equals("") ? null : new File(options.get("cache"));
+        TileCache cache = new TileCache(dir, Runtime.getRuntime().maxMemory() / 4);
+        TileServer server;
+        try {
+            server = new TileServer(port, numThreads, cache, compression);
+        } catch (IOException e) {
+            fail("could not start server\n" + e.getMessage());
+            return;
+        }
+        server.setDefaults(options.get("transformation"), options.get("param"), iterations, options.get("color"));
+        server.setMaxIterations(maxIterations);
+        server.setEscape(periodicity, bailout, smooth);
+        server.start();
+        System.out.println(String.format("Serving tiles on http://localhost:%d/%s/{z}/{x}/{y}.png",
+                                         server.getPort(), options.get("set")));
+    }
+
+    /**
+     * The set to use for pixels spaced by spacing in area, depending on the precision needed.
+     *
+     * When pixels are too close for double precision, this is a set in
+     * double-double precision or computed by perturbation, whose coordinates
+     * are relative to the center of area. Otherwise, this is set itself.
+     */
+    static BaseSet precise(BaseSet set, PlotArea area, double spacing) {
+        if (spacing >= DOUBLE_SPACING) {
+            return set;
+        }
+        BaseSet precise = null;
+        if (spacing < DOUBLE_DOUBLE_SPACING && set instanceof MandelbrotSet) {
+            precise = ((MandelbrotSet)set).perturbed(area.getCenterX(), area.getCenterY(), spacing);
+        }
+        if (precise == null) {
+            precise = set.extended(area.getCenterX(), area.getCenterY());
+        }
+        if (precise == null || (spacing < DOUBLE_DOUBLE_SPACING && !(precise instanceof PerturbationSet))) {
+            info("Warning: resolution exceeds available precision, the plot will be inaccurate");
+        }
+        return (precise != null) ? precise : set;
+    }
+
+    /**
+     * Plot frames zooming in on the center of area by zoom from one frame to the next, frame k being saved as f_k.
+     *
+     * All frames are computed in the same pool, a frame being compressed
+     * while the next one is computed. When zoom is an integer, the values
+     * of the pixels shared by a frame and the previous one are reused
+     * (up to rounding of the coordinates of pixels). Unless pool is null,
+     * frames are computed in it rather than in a pool of numThreads threads.
+     */
+    private static void animate(BaseSet set, PlotArea area, double res, Colorizer colorizer, String f,
+                                int numThreads, int compression, int frames, double zoom, ForkJoinPool pool) {
+        long startedAt = System.currentTimeMillis();
+
+        final int width = (int)Math.floor(area.getWidth() * res);
+        final int height = (int)Math.floor(area.getHeight() * res);
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                String.format("Width (%d) and height (%d) cannot be <= 0", width, height));
+        }
+        // Pixels can only be reused when they match those of the previous frame
+        int factor = (zoom >= 2 && zoom == Math.rint(zoom) && zoom <= Integer.MAX_VALUE) ? (int)zoom : 0;
+
+        final ForkJoinPool framePool = (pool != null) ? pool : new ForkJoinPool(numThreads);
+        ExecutorService encoder = Executors.newSingleThreadExecutor();
+        Future<?> encoding = null;
+        File fil = null;
+        BaseSet previousSet = null;
+        float[] previous = null;
+        info(String.format("Computing %d frames with %d threads...", frames, numThreads));
+        try {
+            for (int k = 0; k < frames; k++) {
+                PlotArea frameArea = area.zoom(Math.pow(zoom, k));
+                BaseSet frameSet = precise(set, frameArea, frameArea.getWidth() / width);
+                if (frameSet != set) {
+                    frameArea = frameArea.relative();
+                }
+                // Coordinates only match within the same precision
+                float[] values = (previous != null && factor > 0 && frameSet.getClass() == previousSet.getClass())
+                                     ? FrameTask.zoomed(previous, height, width, factor) : newValues(height, width);
+
+                final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                FrameTask task = new FrameTask(frameSet, frameArea, colorizer, img, height, width, values);
+                List<String> threadErrs = task.startParallel(framePool);
+                if (!threadErrs.isEmpty()) {
+                    if (encoding != null) {
+                        encoding.get();
+                    }
+                    // Just display the first error
+                    fail(threadErrs.get(0));
+                    return;
+                }
+                info(String.format("\nFrame %d: %s, %.1f%% of pixels reused", k, frameSet,
+                     100. * task.getReused() / ((long)width * height)));
+
+                // The previous frame is written while this one is computed
+                if (encoding != null) {
+                    encoding.get();
+                }
+                fil = new File(frameName(f, k, frames));
+                final PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(fil)),
+                                                       width, height, compression);
+                encoding = encoder.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            writer.writeImage(((DataBufferInt)img.getRaster().getDataBuffer()).getData(), framePool);
+                        } catch (IOException | RuntimeException e) {
+                            writer.abort();
+                            throw e;
+                        }
+                        writer.close();
+                        return null;
+                    }
+                });
+                previous = task.getValues();
+                previousSet = frameSet;
+            }
+            encoding.get();
+        } catch (IOException | ExecutionException e) {
+            if (fil != null) {
+                fil.delete();
+            }
+            Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+            fail("could not generate image file\n" + cause.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            fail("interrupted");
+            return;
+        } finally {
+            encoder.shutdownNow();
+            if (framePool != pool) {
+                framePool.shutdownNow();
+            }
+        }
+
+        result(String.format("Result saved in %s to %s", frameName(f, 0, frames), frameName(f, frames - 1, frames)));
+        info(String.format("Animation ended in %d ms",
+             System.currentTimeMillis() - startedAt));
+    }
+
+    private static float[] newValues(int height, int width) {
+        float[] values = new float[height * width];
+        Arrays.fill(values, Float.NaN);
+        return values;
+    }
+
+    /**
+     * Name of frame k out of frames, i.e. f with the frame number before its extension.
+     */
+    static String frameName(String f, int k, int frames) {
+        int digits = Math.max(4, String.valueOf(frames - 1).length());
+        int dot = f.lastIndexOf('.');
+        if (dot <= f.lastIndexOf(File.separatorChar)) {
+            dot = f.length();
+        }
+        return String.format("%s_%0" + digits + "d%s", f.substring(0, dot), k, f.substring(dot));
+    }
+
+    /**
+     * Color the plot dumped into the raw file rawFil, and save it as f.
+     *
+     * The raw file is read by bands of rows, so that it never has to be
+     * held in memory. Bands are compressed concurrently, as plots are.
+     */
+    private static void recolor(File rawFil, Colorizer colorizer, String f, int numThreads, int compression) {
+        long startedAt = System.currentTimeMillis();
         File fil = new File(f);
+        info("Coloring " + rawFil + "...");
         try {
-            ImageIO.write(img, "png", fil);
+            RawFile.Reader raw = new RawFile.Reader(rawFil);
+            ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                int width = raw.getWidth(), height = raw.getHeight();
+                int[] palette = colorizer.getPalette(PlotTask.paletteSize(raw.getIterations(), raw.isSmooth()));
+                float[] values = new float[PngWriter.BLOCK_ROWS * width];
+                LinkedList<ForkJoinTask<PngWriter.Block>> pending = new LinkedList<ForkJoinTask<PngWriter.Block>>();
+                int[] previous = null;
+                int previousRows = 0, next = 0;
+
+                PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(fil)), width, height,
+                                                 compression);
+                try {
+                    while (next < height || !pending.isEmpty()) {
+                        while (next < height && pending.size() <= numThreads) {
+                            int rows = Math.min(PngWriter.BLOCK_ROWS, height - next);
+                            int[] pixels = new int[rows * width];
+                            raw.read(next, rows, values);
+                            for (int k = 0; k < pixels.length; k++) {
+                                pixels[k] = PlotTask.color(palette, values[k]);
+                            }
+                            pending.add(pool.submit(writer.compressTask(pixels, 0, rows, previous,
+                                                                        previousRows * width, previousRows)));
+                            previous = pixels;
+                            previousRows = rows;
+                            next += rows;
+                        }
+                        writer.write(pending.removeFirst().join());
+                    }
+                } catch (IOException e) {
+                    writer.abort();
+                    throw e;
+                }
+                writer.close();
+            } finally {
+                pool.shutdownNow();
+                raw.close();
+            }
         } catch (IOException e) {
+            fil.delete();
             fail("could not generate image file\n" + e.getMessage());
             return;
         }
 
-        if (Desktop.isDesktopSupported()) {
+        open(fil);
+        info(String.format("Coloring ended in %d ms",
+             System.currentTimeMillis() - startedAt));
+    }
+
+    /**
+     * Run the jobs of the job file fil, jobs at a time, on numThreads threads shared by all jobs.
+     */
+    private static void batch(File fil, int jobs, int numThreads) {
+        long startedAt = System.currentTimeMillis();
+        List<Batch.Job> batch;
+        try {
+            batch = Batch.read(fil);
+        } catch (IOException e) {
+            fail("could not read job file\n" + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            fail(e.getMessage());
+            return;
+        }
+        info(String.format("Running %d jobs, %d at a time, with %d threads...", batch.size(), jobs, numThreads));
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        int failed;
+        try {
+            failed = Batch.run(batch, jobs, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+        System.out.println(String.format("%d jobs done, %d failed", batch.size(), failed));
+        info(String.format("Batch ended in %d ms", System.currentTimeMillis() - startedAt));
+    }
+
+    /**
+     * Report the result of a command, recorded as the result of the job within batches.
+     */
+    private static void result(String msg) {
+        Batch.Job job = Batch.current();
+        if (job != null) {
+            job.succeed(msg);
+        } else {
+            System.out.println(msg);
+        }
+    }
+
+    /**
+     * Open the result with the desktop application, if any (but within batches).
+     */
+    private static void open(File fil) {
+        if (Batch.current() == null && Desktop.isDesktopSupported()) {
             Desktop desktop = Desktop.getDesktop();
             if (desktop.isSupported(Desktop.Action.OPEN)) {
                 try {
@@ -145,8 +798,6 @@ public class Plotter {
             }
         }
 
-        System.out.println("Result saved in " + fil);
-        info(String.format("Plot ended in %d ms",
-             System.currentTimeMillis() - startedAt));
+        result("Result saved in " + fil);
     }
 }
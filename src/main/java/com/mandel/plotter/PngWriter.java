@@ -0,0 +1,371 @@
+package com.mandel.plotter;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+* PngWriter -- A streaming encoder of 8-bit RGB PNG images.
+*
+* Rows are written from top to bottom by blocks, as soon as they are
+* available, so that the whole image never has to be held in memory.
+*
+* Blocks are filtered and compressed independently, possibly concurrently,
+* before being written in order (as pigz does). Each block is a raw DEFLATE
+* stream ended by a sync flush, so that they can be concatenated into a
+* single zlib stream. To keep the compression ratio, the compressor of a
+* block is primed with the end of the previous block as dictionary.
+*
+* Each row is filtered with the filter giving the lowest sum of absolute
+* values, which is the usual heuristic (see the PNG specification, 12.8).
+*/
+class PngWriter implements Closeable {
+
+    public static final int DEFAULT_LEVEL = 6;
+    // Rows per block when compressing a whole image
+    static final int BLOCK_ROWS = 64;
+
+    private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int CHUNK_SIZE = 1 << 16, WINDOW_SIZE = 1 << 15, ADLER_BASE = 65521;
+    private static final int NONE = 0, SUB = 1, UP = 2, AVERAGE = 3, PAETH = 4;
+
+    private final DataOutputStream out;
+    private final int width, height, level;
+    private int rows = 0;
+    // Checksum of the uncompressed stream so far
+    private long adler = 1;
+    private RenderMetrics metrics;
+
+    /**
+    * Block -- Consecutive rows, filtered and compressed.
+    */
+    static class Block {
+        private final int rows;
+        private final byte[] data;
+        private final long adler;
+        private final long length;
+
+        Block(int rows, byte[] data, long adler, long length) {
+            this.rows = rows;
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    public PngWriter(OutputStream out, int width, int height, int level) throws IOException {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level should be between 0 and 9!");
+        }
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.level = level;
+
+        this.out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8;  // Bit depth
+        header[9] = 2;  // Truecolor
+        this.writeChunk("IHDR", header, 0, 13);
+
+        // zlib header: deflate with a 32K window, no dictionary
+        int cmf = 0x78, flg = 2 << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        this.writeChunk("IDAT", new byte[] {(byte)cmf, (byte)flg}, 0, 2);
+    }
+
+    /**
+     * Record the time spent compressing and writing into metrics.
+     */
+    void setMetrics(RenderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Filter and compress count rows of pixels, starting at offset.
+     *
+     * The rows just before them, if any, are given by previous (count
+     * previousCount, ending at previousEnd), for filtering and to prime the
+     * compressor. This does not change the state of the writer, so that
+     * distinct blocks can be compressed concurrently.
+     */
+    Block compress(int[] pixels, int offset, int count,
+                   int[] previous, int previousEnd, int previousCount) {
+        final int stride = 3 * this.width + 1;
+        byte[] prev = new byte[3 * this.width], cur = new byte[3 * this.width], tmp;
+        byte[][] filtered = new byte[5][stride];
+
+        // The filtered previous rows which fit in the window are the dictionary,
+        // except for the first one whose own previous row is unknown
+        int dictRows = Math.min(previousCount - 1, (WINDOW_SIZE + stride - 1) / stride);
+        byte[] dict = new byte[Math.max(dictRows, 0) * stride];
+        for (int r = -dictRows - 1; r < 0; r++) {
+            toBytes(previous, previousEnd + r * this.width, cur);
+            if (r > -dictRows - 1) {
+                System.arraycopy(filter(cur, prev, filtered), 0, dict, (r + dictRows) * stride, stride);
+            }
+            tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+
+        Deflater deflater = new Deflater(this.level, true);
+        Output output = new Output(count * stride / 4 + 64);
+        Adler32 adler = new Adler32();
+        try {
+            if (dict.length > WINDOW_SIZE) {
+                deflater.setDictionary(dict, dict.length - WINDOW_SIZE, WINDOW_SIZE);
+            } else if (dict.length > 0) {
+                deflater.setDictionary(dict);
+            }
+            for (int r = 0; r < count; r++) {
+                toBytes(pixels, offset + r * this.width, cur);
+                byte[] row = filter(cur, prev, filtered);
+                adler.update(row, 0, stride);
+                deflater.setInput(row, 0, stride);
+                while (!deflater.needsInput()) {
+                    output.deflate(deflater, Deflater.NO_FLUSH);
+                }
+                tmp = prev;
+                prev = cur;
+                cur = tmp;
+            }
+            // Flush to a byte boundary, so that the next block can follow
+            while (output.deflate(deflater, Deflater.SYNC_FLUSH)) {
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Block(count, output.toByteArray(), adler.getValue(), (long)count * stride);
+    }
+
+    /**
+     * A task compressing rows as compress does.
+     */
+    ForkJoinTask<Block> compressTask(final int[] pixels, final int offset, final int count,
+                                     final int[] previous, final int previousEnd, final int previousCount) {
+        return new RecursiveTask<Block>() {
+            @Override
+            protected Block compute() {
+                if (metrics == null) {
+                    return compress(pixels, offset, count, previous, previousEnd, previousCount);
+                }
+                long startedAt = System.nanoTime();
+                Block block = compress(pixels, offset, count, previous, previousEnd, previousCount);
+                RenderMetrics.Work work = new RenderMetrics.Work();
+                work.busy = System.nanoTime() - startedAt;
+                metrics.addTime(RenderMetrics.ENCODE, work.busy);
+                metrics.add(work);
+                return block;
+            }
+        };
+    }
+
+    /**
+     * Write the next block of rows.
+     */
+    public void write(Block block) throws IOException {
+        if (this.rows + block.rows > this.height) {
+            throw new IllegalStateException("Too many rows were written!");
+        }
+        long startedAt = System.nanoTime();
+        for (int offset = 0; offset < block.data.length; offset += CHUNK_SIZE) {
+            this.writeChunk("IDAT", block.data, offset, Math.min(CHUNK_SIZE, block.data.length - offset));
+        }
+        this.adler = combine(this.adler, block.adler, block.length);
+        this.rows += block.rows;
+        if (this.metrics != null) {
+            this.metrics.addTime(RenderMetrics.WRITE, System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * Write all rows of an image, compressing blocks of rows on numThreads threads.
+     */
+    public void writeImage(int[] pixels, int numThreads) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            this.writeImage(pixels, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Write all rows of an image, compressing blocks of rows in pool.
+     */
+    public void writeImage(int[] pixels, ForkJoinPool pool) throws IOException {
+        LinkedList<ForkJoinTask<Block>> pending = new LinkedList<ForkJoinTask<Block>>();
+        int next = 0;
+        while (next < this.height || !pending.isEmpty()) {
+            // Only keep a few compressed blocks waiting
+            while (next < this.height && pending.size() <= pool.getParallelism()) {
+                int count = Math.min(BLOCK_ROWS, this.height - next);
+                pending.add(pool.submit(this.compressTask(pixels, next * this.width, count,
+                                                          pixels, next * this.width, next)));
+                next += count;
+            }
+            this.write(pending.removeFirst().join());
+        }
+    }
+
+    /**
+     * Terminate the image. All rows must have been written.
+     */
+    @Override
+    public void close() throws IOException {
+        long startedAt = System.nanoTime();
+        try {
+            if (this.rows != this.height) {
+                throw new IOException(String.format("Only %d rows out of %d were written!", this.rows, this.height));
+            }
+            // Last empty block of the DEFLATE stream, then the zlib checksum
+            byte[] end = new byte[6];
+            end[0] = 0x03;
+            writeInt(end, 2, (int)this.adler);
+            this.writeChunk("IDAT", end, 0, 6);
+            this.writeChunk("IEND", end, 0, 0);
+        } finally {
+            this.out.close();
+            if (this.metrics != null) {
+                this.metrics.addTime(RenderMetrics.WRITE, System.nanoTime() - startedAt);
+            }
+        }
+    }
+
+    /**
+     * Close the output, leaving the image unfinished.
+     */
+    public void abort() throws IOException {
+        this.out.close();
+    }
+
+    /**
+     * Filter the row cur with each filter, and return the best one.
+     */
+    private static byte[] filter(byte[] cur, byte[] prev, byte[][] filtered) {
+        long[] sums = new long[5];
+        for (int k = 0; k < cur.length; k++) {
+            int x = cur[k] & 0xff, a = (k >= 3) ? cur[k - 3] & 0xff : 0,
+                b = prev[k] & 0xff, c = (k >= 3) ? prev[k - 3] & 0xff : 0;
+            filtered[NONE][k + 1] = (byte)x;
+            filtered[SUB][k + 1] = (byte)(x - a);
+            filtered[UP][k + 1] = (byte)(x - b);
+            filtered[AVERAGE][k + 1] = (byte)(x - ((a + b) >> 1));
+            filtered[PAETH][k + 1] = (byte)(x - paeth(a, b, c));
+            for (int f = NONE; f <= PAETH; f++) {
+                sums[f] += Math.abs(filtered[f][k + 1]);
+            }
+        }
+        int best = NONE;
+        for (int f = SUB; f <= PAETH; f++) {
+            if (sums[f] < sums[best]) {
+                best = f;
+            }
+        }
+        filtered[best][0] = (byte)best;
+        return filtered[best];
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return (pb <= pc) ? b : c;
+    }
+
+    private static void toBytes(int[] pixels, int offset, byte[] row) {
+        for (int j = 0; j < row.length / 3; j++) {
+            int pixel = pixels[offset + j];
+            row[3 * j] = (byte)(pixel >> 16);
+            row[3 * j + 1] = (byte)(pixel >> 8);
+            row[3 * j + 2] = (byte)pixel;
+        }
+    }
+
+    /**
+     * Adler-32 checksum of the concatenation of two streams, the second one being of given length.
+     */
+    static long combine(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= 2L * ADLER_BASE) {
+            sum2 -= 2L * ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private void writeChunk(String type, byte[] data, int offset, int len) throws IOException {
+        byte[] name = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, offset, len);
+        this.out.writeInt(len);
+        this.out.write(name);
+        this.out.write(data, offset, len);
+        this.out.writeInt((int)crc.getValue());
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte)(value >>> 24);
+        b[offset + 1] = (byte)(value >>> 16);
+        b[offset + 2] = (byte)(value >>> 8);
+        b[offset + 3] = (byte)value;
+    }
+
+    /**
+    * Output -- A growable buffer collecting the output of a Deflater.
+    */
+    private static class Output {
+        private byte[] data;
+        private int size = 0;
+
+        Output(int capacity) {
+            this.data = new byte[Math.max(capacity, 1024)];
+        }
+
+        /**
+         * Deflate into the buffer, returning whether the output filled it up.
+         */
+        boolean deflate(Deflater deflater, int flush) {
+            if (this.size == this.data.length) {
+                byte[] data = new byte[2 * this.data.length];
+                System.arraycopy(this.data, 0, data, 0, this.size);
+                this.data = data;
+            }
+            int len = deflater.deflate(this.data, this.size, this.data.length - this.size, flush);
+            this.size += len;
+            return this.size == this.data.length;
+        }
+
+        byte[] toByteArray() {
+            byte[] res = new byte[this.size];
+            System.arraycopy(this.data, 0, res, 0, this.size);
+            return res;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.mandel.plotter;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.sets.BaseSet;
+
+
+/**
+* ProgressiveTask -- A PlotTask computing the plot from coarse to fine.
+*
+* The plot is computed in passes over grids of pixels, each stride being
+* half the previous one (see STRIDES): 1 pixel out of 16 first, then 1 out
+* of 4, then all of them. A pass only computes the pixels which are not on
+* the grid of the previous one, so that no pixel is computed twice.
+*
+* After each pass but the last, every pixel gets the color of the closest
+* computed pixel above and to its left, which gives a preview of the plot.
+*
+* The task may be stopped at any time, by stop or once a deadline or a
+* number of iterations is reached. Pixels which are not computed then get
+* the color of the grid of the last complete pass.
+*/
+class ProgressiveTask extends PlotTask {
+
+    public static final String ID = "progressive";
+
+    // Spacing of the grids of pixels computed by each pass
+    static final int[] STRIDES = {4, 2, 1};
+
+    private final float[] values;
+    private final AtomicLong iterations;
+    private Listener listener;
+    private int pass = 0, complete = 0;
+    private volatile boolean stopped = false;
+    // System.nanoTime at which to stop, and number of iterations after which to stop, if positive
+    private long deadline = 0, maxIterations = 0;
+
+    /**
+    * Listener -- Notified of the pixels of the plot after each pass.
+    */
+    interface Listener {
+        /**
+         * Called after pass out of passes, pixels being those of the whole plot (which must not be modified).
+         */
+        void passDone(int pass, int passes, int[] pixels) throws IOException;
+    }
+
+    public ProgressiveTask(BaseSet set, PlotArea area, Colorizer colorizer, BufferedImage img,
+                           int height, int width) {
+        super(set, area, colorizer, img, height, width);
+        this.values = new float[height * width];
+        // NaN marks pixels which are not computed yet
+        Arrays.fill(this.values, Float.NaN);
+        this.iterations = new AtomicLong();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stop at System.nanoTime deadline, if positive.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Stop once about maxIterations iterations were carried out, if positive.
+     *
+     * Points of the set count for the whole number of iterations, and the
+     * line being computed when the budget runs out is completed.
+     */
+    public void setMaxIterations(long maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Stop computing pixels as soon as possible.
+     */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * Whether the task was stopped, or reached its deadline or iterations.
+     */
+    public boolean isStopped() {
+        if (!this.stopped && ((this.deadline > 0 && System.nanoTime() - this.deadline >= 0)
+                              || (this.maxIterations > 0 && this.iterations.get() >= this.maxIterations))) {
+            this.stopped = true;
+        }
+        return this.stopped;
+    }
+
+    /**
+     * Number of passes which were completed.
+     */
+    public int getCompletePasses() {
+        return this.complete;
+    }
+
+    /**
+     * The values of the whole plot.
+     */
+    public float[] getValues() {
+        return this.values;
+    }
+
+    /**
+     * Executes all passes in pool, the listener being notified after each of them.
+     */
+    public List<String> startProgressive(ForkJoinPool pool) throws IOException {
+        List<String> errs = new ArrayList<String>();
+        try {
+            this.run(pool);
+        } catch (RuntimeException e) {
+            errs.add(errorMessage(e));
+        }
+        return errs;
+    }
+
+    /**
+     * Executes the passes in pool until they are all done or the task is stopped.
+     *
+     * Exceptions thrown by workers are thrown as is.
+     */
+    void run(ForkJoinPool pool) throws IOException {
+        for (this.pass = 0; this.pass < STRIDES.length && !this.isStopped(); this.pass++) {
+            pool.invoke(this.createRoot());
+            if (this.isStopped()) {
+                break;
+            }
+            this.complete++;
+            if (STRIDES[this.pass] > 1) {
+                this.fill(STRIDES[this.pass]);
+            }
+            if (this.listener != null) {
+                this.listener.passDone(this.pass, STRIDES.length, this.pixels);
+            }
+        }
+        if (this.complete < STRIDES.length) {
+            this.fillMissing();
+        }
+    }
+
+    /**
+     * Compute the pixels of line i in [from, to[ belonging to the current pass.
+     *
+     * Only the values computed by the pass are reported into values, the
+     * others being NaN, so that each value is reported once. Colors are
+     * only set by the last pass, previews being filled afterwards.
+     */
+    @Override
+    protected void computeLine(int i, int from, int to, double[] xs, float[] values, int[] line) {
+        int stride = STRIDES[this.pass];
+        Arrays.fill(values, 0, to - from, Float.NaN);
+        if (i % stride != 0 || this.isStopped()) {
+            return;
+        }
+        // On lines of the previous grid, every other pixel is already known
+        int step = (this.pass > 0 && i % STRIDES[this.pass - 1] == 0) ? 2 * stride : stride;
+        int first = (step > stride) ? stride : 0;
+        int start = from + ((first - from) % step + step) % step;
+
+        long startedAt = (this.metrics != null) ? System.nanoTime() : 0;
+        int n = (to - start + step - 1) / step;
+        double[] todo = new double[Math.max(n, 0)];
+        float[] computed = new float[todo.length];
+        for (int k = 0; k < todo.length; k++) {
+            todo[k] = xs[start + k * step - from];
+        }
+        this.set.containsLine(todo, this.y(i), computed, todo.length);
+        long computedAt = (this.metrics != null) ? System.nanoTime() : 0;
+
+        int offset = i * this.width;
+        for (int k = 0; k < todo.length; k++) {
+            int j = start + k * step;
+            this.values[offset + j] = computed[k];
+            values[j - from] = computed[k];
+        }
+        if (this.maxIterations > 0) {
+            long count = 0;
+            for (int k = 0; k < todo.length; k++) {
+                count += Math.round(computed[k] * this.set.getIterations());
+            }
+            this.iterations.addAndGet(count);
+        }
+        if (stride == 1) {
+            for (int j = from; j < to; ++j) {
+                line[j - from] = this.color(this.values[offset + j]);
+            }
+        }
+        if (this.metrics != null) {
+            this.metrics.addTime(RenderMetrics.COMPUTE, computedAt - startedAt);
+            this.metrics.addTime(RenderMetrics.COLORIZE, System.nanoTime() - computedAt);
+        }
+        super.progress(todo.length);
+    }
+
+    @Override
+    protected void progress(int pixels) {
+        // Only computed pixels are reported, by computeLine
+    }
+
+    /**
+     * Color the pixels which are not computed as the grid of the last complete pass, if any.
+     */
+    private void fillMissing() {
+        int stride = (this.complete > 0) ? STRIDES[this.complete - 1] : 0;
+        for (int i = 0; i < this.height; i++) {
+            for (int j = 0; j < this.width; j++) {
+                int k = i * this.width + j;
+                float val = this.values[k];
+                if (Float.isNaN(val) && stride > 0) {
+                    val = this.values[(i - i % stride) * this.width + j - j % stride];
+                }
+                this.pixels[k] = Float.isNaN(val) ? 0 : this.color(val);
+            }
+        }
+    }
+
+    /**
+     * Color each pixel as the pixel of the grid of spacing stride above and to its left.
+     */
+    private void fill(int stride) {
+        for (int i = 0; i < this.height; i++) {
+            int from = (i - i % stride) * this.width;
+            for (int j = 0; j < this.width; j++) {
+                this.pixels[i * this.width + j] = this.color(this.values[from + j - j % stride]);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.mandel.plotter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+* RawFile -- Binary dump of the values of a plot, so that it can be colored again without computation.
+*
+* The file holds a header (magic number, format version, width, height,
+* number of iterations and flags, as 32-bit integers) followed by the value
+* of each pixel as a float, row by row. Values are i / iterations for a point
+* escaping after i iterations, unless they are smooth, and 1 for points of
+* the set. Numbers are big-endian.
+*
+* Files are accessed through memory mappings, by bands of rows so that
+* files larger than a mapping can be handled.
+*/
+class RawFile {
+
+    static final int MAGIC = 0x4d4e444c;  // "MNDL"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 24;
+    // Flag of smooth values
+    static final int SMOOTH = 1;
+    // Largest mapping, in bytes
+    private static final int MAX_MAPPING = 1 << 30;
+
+    public static class InvalidRawFile extends IllegalArgumentException {
+        public InvalidRawFile(String message) {
+            super(message);
+        }
+    }
+
+    protected final RandomAccessFile file;
+    protected final FileChannel channel;
+    protected int width, height, iterations;
+    protected boolean smooth;
+
+    private RawFile(File file, String mode) throws IOException {
+        this.file = new RandomAccessFile(file, mode);
+        this.channel = this.file.getChannel();
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public int getIterations() {
+        return this.iterations;
+    }
+
+    public boolean isSmooth() {
+        return this.smooth;
+    }
+
+    /**
+     * Map the given number of rows, starting at row first, into memory.
+     */
+    protected MappedByteBuffer map(FileChannel.MapMode mode, int first, int rows) throws IOException {
+        if (first < 0 || rows < 0 || first + rows > this.height) {
+            throw new IllegalArgumentException("Rows are out of the plot!");
+        }
+        return this.channel.map(mode, HEADER_SIZE + 4L * first * this.width, 4L * rows * this.width);
+    }
+
+    /**
+     * Number of rows that can be mapped at once.
+     */
+    protected int maxRows() {
+        return Math.max(1, MAX_MAPPING / (4 * Math.max(this.width, 1)));
+    }
+
+    /**
+    * Writer -- Creates a raw file.
+    */
+    public static class Writer extends RawFile implements Closeable {
+
+        public Writer(File file, int width, int height, int iterations, boolean smooth) throws IOException {
+            super(file, "rw");
+            this.width = width;
+            this.height = height;
+            this.iterations = iterations;
+            this.smooth = smooth;
+            try {
+                this.file.setLength(HEADER_SIZE + 4L * width * height);
+                MappedByteBuffer header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(iterations)
+                      .putInt(smooth ? SMOOTH : 0);
+            } catch (IOException e) {
+                this.file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Write the values of count rows, starting at row first.
+         */
+        public void write(int first, int count, float[] values) throws IOException {
+            int step = this.maxRows();
+            for (int r = 0; r < count; r += step) {
+                int rows = Math.min(step, count - r);
+                this.map(FileChannel.MapMode.READ_WRITE, first + r, rows).asFloatBuffer()
+                    .put(values, r * this.width, rows * this.width);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.file.close();
+        }
+    }
+
+    /**
+    * Reader -- Reads an existing raw file.
+    */
+    public static class Reader extends RawFile implements Closeable {
+
+        public Reader(File file) throws IOException {
+            super(file, "r");
+            try {
+                if (this.file.length() < HEADER_SIZE) {
+                    throw new InvalidRawFile("Not a raw plot file!");
+                }
+                MappedByteBuffer header = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt() != MAGIC) {
+                    throw new InvalidRawFile("Not a raw plot file!");
+                } else if (header.getInt() != VERSION) {
+                    throw new InvalidRawFile("Unsupported raw plot file version!");
+                }
+                this.width = header.getInt();
+                this.height = header.getInt();
+                this.iterations = header.getInt();
+                this.smooth = (header.getInt() & SMOOTH) != 0;
+                if (this.width <= 0 || this.height <= 0
+                    || this.file.length() != HEADER_SIZE + 4L * this.width * this.height) {
+                    throw new InvalidRawFile("Raw plot file is corrupted!");
+                }
+            } catch (IOException | RuntimeException e) {
+                this.file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Read the values of count rows, starting at row first.
+         */
+        public void read(int first, int count, float[] values) throws IOException {
+            int step = this.maxRows();
+            for (int r = 0; r < count; r += step) {
+                int rows = Math.min(step, count - r);
+                this.map(FileChannel.MapMode.READ_ONLY, first + r, rows).asFloatBuffer()
+                    .get(values, r * this.width, rows * this.width);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.file.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.mandel.plotter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.mandel.sets.BaseSet;
+
+
+/**
+* RenderMetrics -- Timings and counters of a plot, saved as JSON.
+*
+* Phases are timed by the threads running them, so that the times of
+* phases run concurrently (compute, colorize and encode) are summed over
+* all threads. Each worker records its own rows, pixels and busy time,
+* the rest of the render being its idle time.
+*
+* Escape counts are recovered from the values of pixels (up to an
+* iteration with smooth values), points of the set counting for the whole
+* number of iterations. They are gathered into a histogram of at most
+* BUCKETS buckets, plus one for points of the set. The iterations carried
+* out leave out those saved on points of the set found early, which the
+* set counts (see BaseSet.setCounting), and pixels which were not computed.
+*/
+class RenderMetrics {
+
+    static final int BUCKETS = 64;
+    static final int BUILD = 0, COMPUTE = 1, COLORIZE = 2, ENCODE = 3, WRITE = 4;
+    private static final String[] PHASES = {"build", "compute", "colorize", "encode", "write"};
+
+    private final int iterations, bucketSize;
+    private final boolean smooth;
+    private final AtomicLongArray phases;
+    private final long[] histogram;
+    private final Map<String, Work> workers;
+    private long totalIterations = 0;
+    private long startedAt = 0, endedAt = 0;
+
+    /**
+    * Work -- What a worker did, gathered locally before being added to the metrics.
+    */
+    static class Work {
+        int rows = 0;
+        long pixels = 0, busy = 0, iterations = 0;
+        private final long[] histogram = new long[BUCKETS + 1];
+    }
+
+    RenderMetrics(int iterations, boolean smooth) {
+        this.iterations = iterations;
+        this.smooth = smooth;
+        this.bucketSize = Math.max(1, (iterations + BUCKETS - 1) / BUCKETS);
+        this.phases = new AtomicLongArray(PHASES.length);
+        this.histogram = new long[BUCKETS + 1];
+        this.workers = new TreeMap<String, Work>();
+    }
+
+    /**
+     * Record the beginning of the render, from which idle times are counted.
+     */
+    synchronized void start() {
+        this.startedAt = System.nanoTime();
+    }
+
+    synchronized void stop() {
+        this.endedAt = System.nanoTime();
+    }
+
+    void addTime(int phase, long nanos) {
+        this.phases.addAndGet(phase, nanos);
+    }
+
+    /**
+     * Add the escape counts of count values starting at offset to work, skipping NaN values.
+     *
+     * Values must have just been computed by the current thread (see iterations).
+     */
+    void count(float[] values, int offset, int count, Work work) {
+        this.histogram(values, offset, count, work);
+        this.iterations(values, offset, count, work);
+    }
+
+    /**
+     * Add the escape counts of count values starting at offset to the histogram of work, skipping NaN values.
+     */
+    void histogram(float[] values, int offset, int count, Work work) {
+        for (int k = offset; k < offset + count; k++) {
+            float val = values[k];
+            if (val >= 1.f) {
+                work.histogram[BUCKETS]++;
+            } else if (!Float.isNaN(val)) {
+                work.histogram[Math.min(this.escape(val) / this.bucketSize, BUCKETS - 1)]++;
+            }
+        }
+    }
+
+    /**
+     * Add the iterations carried out on count values starting at offset to work, skipping NaN values.
+     *
+     * Values must have just been computed by the current thread, whose
+     * iterations saved on points of the set are taken off.
+     */
+    void iterations(float[] values, int offset, int count, Work work) {
+        for (int k = offset; k < offset + count; k++) {
+            float val = values[k];
+            if (val >= 1.f) {
+                work.iterations += this.iterations;
+            } else if (!Float.isNaN(val)) {
+                work.iterations += this.escape(val);
+            }
+        }
+        work.iterations -= BaseSet.takeSaved();
+    }
+
+    private int escape(float val) {
+        return this.smooth ? (int)(val * this.iterations) : Math.round(val * this.iterations);
+    }
+
+    /**
+     * Add the work done by the current thread.
+     */
+    synchronized void add(Work work) {
+        String name = Thread.currentThread().getName();
+        Work total = this.workers.get(name);
+        if (total == null) {
+            total = new Work();
+            this.workers.put(name, total);
+        }
+        total.rows += work.rows;
+        total.pixels += work.pixels;
+        total.busy += work.busy;
+        this.addCounts(work);
+    }
+
+    /**
+     * Add the escape counts of work, without crediting any thread.
+     */
+    synchronized void addCounts(Work work) {
+        this.totalIterations += work.iterations;
+        for (int b = 0; b <= BUCKETS; b++) {
+            this.histogram[b] += work.histogram[b];
+        }
+    }
+
+    /**
+     * Save the metrics as JSON into fil, along with the size of the plot.
+     */
+    synchronized void write(File fil, int width, int height, int numThreads) throws IOException {
+        long wall = this.endedAt - this.startedAt;
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append(String.format(Locale.ROOT, "  \"width\": %d,\n  \"height\": %d,\n", width, height));
+        sb.append(String.format(Locale.ROOT, "  \"iterations\": %d,\n  \"threads\": %d,\n", this.iterations, numThreads));
+        sb.append("  \"time\": {");
+        for (int p = 0; p < PHASES.length; p++) {
+            sb.append(String.format(Locale.ROOT, "\"%s\": %s, ", PHASES[p], millis(this.phases.get(p))));
+        }
+        sb.append(String.format(Locale.ROOT, "\"render\": %s},\n", millis(wall)));
+        sb.append("  \"workers\": [");
+        String sep = "\n";
+        for (Map.Entry<String, Work> entry: this.workers.entrySet()) {
+            Work work = entry.getValue();
+            sb.append(sep).append(String.format(Locale.ROOT,
+                "    {\"name\": \"%s\", \"rows\": %d, \"pixels\": %d, \"busy\": %s, \"idle\": %s}",
+                escape(entry.getKey()), work.rows, work.pixels, millis(work.busy),
+                millis(Math.max(wall - work.busy, 0))));
+            sep = ",\n";
+        }
+        sb.append(this.workers.isEmpty() ? "],\n" : "\n  ],\n");
+        sb.append(String.format(Locale.ROOT, "  \"totalIterations\": %d,\n", this.totalIterations));
+        sb.append(String.format(Locale.ROOT, "  \"iterationsPerSecond\": %.0f,\n",
+                                (wall > 0) ? this.totalIterations * 1e9 / wall : 0.));
+        sb.append(String.format(Locale.ROOT, "  \"histogram\": {\"bucketSize\": %d, \"counts\": [", this.bucketSize));
+        int buckets = (this.iterations + this.bucketSize - 1) / this.bucketSize;
+        for (int b = 0; b < buckets; b++) {
+            sb.append((b > 0) ? ", " : "").append(this.histogram[b]);
+        }
+        sb.append(String.format(Locale.ROOT, "], \"inSet\": %d}\n}\n", this.histogram[BUCKETS]));
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(fil), "UTF-8");
+        try {
+            out.write(sb.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,166 @@
+package com.mandel.plotter;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.sets.BaseSet;
+
+
+/**
+* Renderer -- Renders plots in the background, for applications embedding the engine.
+*
+* Plots are computed from coarse to fine (see ProgressiveTask) in a pool
+* shared by all renders. A render may be cancelled, and bounded by a time
+* or a number of iterations: once they are exhausted, the pixels which are
+* not computed yet get the color of a coarser pass, and the result is
+* marked as incomplete.
+*
+* Exceptions thrown while rendering are kept by each render, get throwing
+* them wrapped into an ExecutionException.
+*/
+public class Renderer implements Closeable {
+
+    private final ForkJoinPool pool;
+    // Threads waiting for the passes of each render
+    private final ExecutorService drivers;
+
+    /**
+    * Result -- The image of a render, and whether all its pixels were computed.
+    */
+    public static class Result {
+        private final BufferedImage image;
+        private final float[] values;
+        private final boolean complete;
+
+        Result(BufferedImage image, float[] values, boolean complete) {
+            this.image = image;
+            this.values = values;
+            this.complete = complete;
+        }
+
+        public BufferedImage getImage() {
+            return this.image;
+        }
+
+        /**
+         * The values of the pixels, row by row, NaN for pixels which were not computed.
+         */
+        public float[] getValues() {
+            return this.values;
+        }
+
+        public boolean isComplete() {
+            return this.complete;
+        }
+    }
+
+    /**
+    * Render -- A pending render, which may be cancelled.
+    */
+    public static class Render implements Future<Result> {
+        private final ProgressiveTask task;
+        private final Future<Result> future;
+
+        Render(ProgressiveTask task, Future<Result> future) {
+            this.task = task;
+            this.future = future;
+        }
+
+        /**
+         * Cancel the render, whose workers stop as soon as they are done with their current line.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            this.task.stop();
+            return this.future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.future.isDone();
+        }
+
+        @Override
+        public Result get() throws InterruptedException, ExecutionException {
+            return this.future.get();
+        }
+
+        @Override
+        public Result get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return this.future.get(timeout, unit);
+        }
+    }
+
+    /**
+     * Build a renderer computing plots on numThreads threads.
+     *
+     * It must be closed once done with, for its threads to end.
+     */
+    public Renderer(int numThreads) {
+        this.pool = new ForkJoinPool(numThreads);
+        this.drivers = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Start rendering area with given size in pixels.
+     *
+     * The render stops after timeout milliseconds from now, and once about
+     * maxIterations iterations were carried out, unless those are 0.
+     */
+    public Render submit(BaseSet set, PlotArea area, Colorizer colorizer, int width, int height,
+                         long timeout, long maxIterations) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                String.format("Width (%d) and height (%d) cannot be <= 0", width, height));
+        }
+        BaseSet precise = Plotter.precise(set, area, area.getWidth() / width);
+        if (precise != set) {
+            set = precise;
+            area = area.relative();
+        }
+
+        final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final ProgressiveTask task = new ProgressiveTask(set, area, colorizer, img, height, width);
+        if (timeout > 0) {
+            task.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
+        task.setMaxIterations(maxIterations);
+        Future<Result> future = this.drivers.submit(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                try {
+                    task.run(pool);
+                } catch (RuntimeException e) {
+                    throw PlotTask.unwrap(e);
+                }
+                boolean complete = task.getCompletePasses() == ProgressiveTask.STRIDES.length;
+                return new Result(img, task.getValues(), complete);
+            }
+        });
+        return new Render(task, future);
+    }
+
+    /**
+     * Stop all renders.
+     */
+    @Override
+    public void close() {
+        this.drivers.shutdownNow();
+        this.pool.shutdownNow();
+    }
+}
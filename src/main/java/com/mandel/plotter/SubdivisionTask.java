@@ -0,0 +1,162 @@
+package com.mandel.plotter;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.sets.BaseSet;
+
+
+/**
+* SubdivisionTask -- A PlotTask using the Mariani-Silver algorithm.
+*
+* The image is recursively split into rectangles. Only the border of a
+* rectangle is computed: when all its pixels have the same value, the
+* rectangle is filled with it, otherwise it is split into four smaller
+* rectangles. Small rectangles are computed pixel by pixel.
+*
+* Each rectangle is a ForkJoin action, so that sub-rectangles are spread
+* over the workers of the pool.
+*/
+class SubdivisionTask extends PlotTask {
+
+    public static final String ID = "subdivide";
+
+    // Rectangles smaller than that are computed pixel by pixel
+    static final int MIN_SIZE = 6;
+
+    private final float[] values;
+    private final AtomicLong skipped;
+
+    /**
+    * Rectangle -- Processes the rectangle with corners (left, top) and (right, bottom), both included.
+    */
+    private class Rectangle extends RecursiveAction {
+        private final int left, top, right, bottom;
+
+        Rectangle(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        @Override
+        protected void compute() {
+            process(this.left, this.top, this.right, this.bottom);
+        }
+    }
+
+    public SubdivisionTask(BaseSet set, PlotArea area, Colorizer colorizer, BufferedImage img,
+                           int height, int width) {
+        super(set, area, colorizer, img, height, width);
+        this.values = new float[height * width];
+        // NaN marks pixels which are not computed yet
+        Arrays.fill(this.values, Float.NaN);
+        this.skipped = new AtomicLong();
+    }
+
+    /**
+     * Number of pixels which were filled without being computed.
+     */
+    public long getSkipped() {
+        return this.skipped.get();
+    }
+
+    /**
+     * The values of the whole plot.
+     */
+    public float[] getValues() {
+        return this.values;
+    }
+
+    @Override
+    protected ForkJoinTask<?> createRoot() {
+        return new Rectangle(0, 0, this.width - 1, this.height - 1);
+    }
+
+    private void process(int left, int top, int right, int bottom) {
+        if (right < left || bottom < top) {
+            return;
+        }
+        long startedAt = (this.metrics != null) ? System.nanoTime() : 0;
+        RenderMetrics.Work work = (this.metrics != null) ? new RenderMetrics.Work() : null;
+        if (right - left < MIN_SIZE || bottom - top < MIN_SIZE) {
+            for (int i = top; i <= bottom; i++) {
+                for (int j = left; j <= right; j++) {
+                    this.value(i, j, work);
+                }
+            }
+            this.record(work, startedAt, (long)(right - left + 1) * (bottom - top + 1));
+            return;
+        }
+
+        float val = this.value(top, left, work);
+        boolean uniform = true;
+        for (int j = left; j <= right; j++) {
+            uniform &= this.value(top, j, work) == val;
+            uniform &= this.value(bottom, j, work) == val;
+        }
+        for (int i = top + 1; i < bottom; i++) {
+            uniform &= this.value(i, left, work) == val;
+            uniform &= this.value(i, right, work) == val;
+        }
+
+        if (uniform) {
+            int rgb = this.color(val);
+            for (int i = top + 1; i < bottom; i++) {
+                int from = i * this.width + left + 1, to = i * this.width + right;
+                Arrays.fill(this.values, from, to, val);
+                Arrays.fill(this.pixels, from, to, rgb);
+            }
+            this.skipped.addAndGet((long)(right - left - 1) * (bottom - top - 1));
+            this.record(work, startedAt, (long)(right - left + 1) * (bottom - top + 1));
+            return;
+        }
+        this.record(work, startedAt, 2L * (right - left + bottom - top));
+
+        // Sub-rectangles share their borders
+        int midX = (left + right) / 2, midY = (top + bottom) / 2;
+        ForkJoinTask.invokeAll(new Rectangle(left, top, midX, midY),
+                               new Rectangle(midX, top, right, midY),
+                               new Rectangle(left, midY, midX, bottom),
+                               new Rectangle(midX, midY, right, bottom));
+    }
+
+    /**
+     * Record the work of the current thread since startedAt, on the given number of pixels.
+     *
+     * Pixels on shared borders are counted by each rectangle they belong to.
+     */
+    private void record(RenderMetrics.Work work, long startedAt, long pixels) {
+        if (work != null) {
+            work.pixels = pixels;
+            work.busy = System.nanoTime() - startedAt;
+            this.metrics.addTime(RenderMetrics.COMPUTE, work.busy);
+            this.metrics.add(work);
+        }
+    }
+
+    /**
+     * Value of the pixel at line i and column j, computed if needed.
+     *
+     * Pixels on shared borders may be computed concurrently, which is harmless.
+     * Computed pixels are counted into work, if any.
+     */
+    private float value(int i, int j, RenderMetrics.Work work) {
+        int k = i * this.width + j;
+        float val = this.values[k];
+        if (Float.isNaN(val)) {
+            val = this.compute(i, j);
+            this.values[k] = val;
+            this.pixels[k] = this.color(val);
+            if (work != null) {
+                this.metrics.iterations(this.values, k, 1, work);
+            }
+        }
+        return val;
+    }
+}
@@ -0,0 +1,128 @@
+package com.mandel.plotter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+* TileCache -- A two-level cache of the values of tiles.
+*
+* Recently used tiles are kept in memory, the least recently used ones
+* being evicted once they take more than a given size. Tiles may also be
+* stored on disk as raw files, under directory/key/z/x/y.raw, so that they
+* outlive the process. The key identifies the fractal the values belong to.
+*/
+public class TileCache {
+
+    private final File directory;
+    private final long maxBytes;
+    private long bytes = 0;
+    private final LinkedHashMap<String, float[]> memory;
+    private final AtomicLong hits, misses;
+
+    /**
+     * Build a cache holding at most maxBytes of values in memory, and storing tiles into directory unless null.
+     */
+    public TileCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        // Access order, so that the eldest entry is the least recently used
+        this.memory = new LinkedHashMap<String, float[]>(16, 0.75f, true);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Values of tile (z, x, y) of the fractal key, or null if they are not cached.
+     */
+    public float[] get(String key, int z, int x, int y) {
+        String id = id(key, z, x, y);
+        float[] values = this.fromMemory(id);
+        if (values == null && this.directory != null) {
+            File file = new File(this.directory, id + ".raw");
+            if (file.isFile()) {
+                try {
+                    RawFile.Reader raw = new RawFile.Reader(file);
+                    try {
+                        values = new float[raw.getWidth() * raw.getHeight()];
+                        raw.read(0, raw.getHeight(), values);
+                    } finally {
+                        raw.close();
+                    }
+                    this.toMemory(id, values);
+                } catch (IOException | IllegalArgumentException e) {
+                    // Unreadable files are computed again
+                    values = null;
+                }
+            }
+        }
+        if (values != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+        return values;
+    }
+
+    /**
+     * Store the values of tile (z, x, y) of the fractal key, which must not be modified afterwards.
+     */
+    public void put(String key, int z, int x, int y, float[] values, int size, int iterations, boolean smooth)
+            throws IOException {
+        String id = id(key, z, x, y);
+        this.toMemory(id, values);
+        if (this.directory == null) {
+            return;
+        }
+        File file = new File(this.directory, id + ".raw");
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        // Written aside then renamed, so that readers never see a partial file
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            RawFile.Writer raw = new RawFile.Writer(tmp, size, size, iterations, smooth);
+            try {
+                raw.write(0, size, values);
+            } finally {
+                raw.close();
+            }
+            if (!tmp.renameTo(file) && !file.isFile()) {
+                throw new IOException("Could not write " + file);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private synchronized float[] fromMemory(String id) {
+        return this.memory.get(id);
+    }
+
+    private synchronized void toMemory(String id, float[] values) {
+        float[] old = this.memory.put(id, values);
+        this.bytes += 4L * values.length - ((old != null) ? 4L * old.length : 0);
+        Iterator<Map.Entry<String, float[]>> it = this.memory.entrySet().iterator();
+        while (this.bytes > this.maxBytes && it.hasNext()) {
+            this.bytes -= 4L * it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    private static String id(String key, int z, int x, int y) {
+        return String.format("%s/%d/%d/%d", key, z, x, y);
+    }
+}
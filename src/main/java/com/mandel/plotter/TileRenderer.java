@@ -0,0 +1,205 @@
+package com.mandel.plotter;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.parser.AST;
+import com.mandel.sets.BaseSet;
+
+
+/**
+* TileRenderer -- Renders a fractal as a quadtree of square tiles.
+*
+* Tile (0, 0, 0) is the square holding the default area of the set, and
+* tile (z, x, y) is one of the 4^z tiles of level z, x growing rightwards
+* and y downwards, as in slippy maps. Tiles are computed in double
+* precision, down to level MAX_LEVEL.
+*
+* Values of tiles are cached, so that a tile is only computed once,
+* whatever its colors. When a tile is computed, the pixels it shares with
+* its parent tile are taken from the cache if the parent is there.
+*/
+public class TileRenderer {
+
+    public static final int SIZE = 256;
+    public static final int MAX_LEVEL = 30;
+
+    private final BaseSet set;
+    private final String key;
+    private final TileCache cache;
+    private final ForkJoinPool pool;
+    private final double left, top, side;
+    private final AtomicLong reused;
+
+    public static class InvalidTile extends IllegalArgumentException {
+        public InvalidTile(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Build a renderer of set computing tiles in pool, key identifying the set in the cache (see key).
+     */
+    public TileRenderer(BaseSet set, String key, TileCache cache, ForkJoinPool pool) {
+        this.set = set;
+        this.key = key;
+        this.cache = cache;
+        this.pool = pool;
+        this.reused = new AtomicLong();
+        PlotArea area = set.getDefaultArea();
+        this.side = Math.max(area.getWidth(), area.getHeight());
+        this.left = (area.left + area.right - this.side) / 2;
+        this.top = (area.bottom + area.top + this.side) / 2;
+    }
+
+    /**
+     * Canonical key of the set built by SetBuilder from the given options.
+     *
+     * This is a hash of the name of the set, the reduced transformation
+     * tree, the parameter and the settings of set changing its values.
+     */
+    public static String key(String name, String transformation, String param, BaseSet set) {
+        StringBuilder sb = new StringBuilder(name.toLowerCase());
+        sb.append('\n').append(transformation.equals("") ? "" : AST.parse(transformation).reduce().getSignature());
+        sb.append('\n');
+        if (!param.equals("")) {
+            for (String part: param.split(";")) {
+                try {
+                    sb.append(Double.toString(Double.parseDouble(part))).append(';');
+                } catch (NumberFormatException e) {
+                    sb.append(part.trim()).append(';');
+                }
+            }
+        }
+        sb.append('\n').append(set.getIterations())
+          .append('\n').append(set.getPeriodicity())
+          .append('\n').append(set.getBailout())
+          .append('\n').append(set.isSmooth());
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(sb.toString().getBytes(Charset.forName("UTF-8")));
+            return String.format("%064x", new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Number of pixels taken from parent tiles rather than computed.
+     */
+    public long getReused() {
+        return this.reused.get();
+    }
+
+    /**
+     * The area covered by tile (z, x, y).
+     */
+    public PlotArea getArea(int z, int x, int y) {
+        check(z, x, y);
+        double size = this.side / (1L << z);
+        double left = this.left + size * x, top = this.top - size * y;
+        return new PlotArea(left, left + size, top - size, top);
+    }
+
+    /**
+     * The pixels of tile (z, x, y), SIZE rows of SIZE pixels.
+     */
+    public int[] render(int z, int x, int y, Colorizer colorizer) {
+        check(z, x, y);
+        float[] values = this.cached(z, x, y);
+        if (values == null) {
+            return this.compute(z, x, y, colorizer);
+        }
+        int[] palette = colorizer.getPalette(PlotTask.paletteSize(this.set.getIterations(), this.set.isSmooth()));
+        int[] pixels = new int[values.length];
+        for (int k = 0; k < values.length; k++) {
+            pixels[k] = PlotTask.color(palette, values[k]);
+        }
+        return pixels;
+    }
+
+    /**
+     * Write tile (z, x, y) to out as a PNG image.
+     */
+    public void writePng(int z, int x, int y, Colorizer colorizer, OutputStream out, int level) throws IOException {
+        int[] pixels = this.render(z, x, y, colorizer);
+        PngWriter writer = new PngWriter(out, SIZE, SIZE, level);
+        writer.write(writer.compress(pixels, 0, SIZE, null, 0, 0));
+        writer.close();
+    }
+
+    private float[] cached(int z, int x, int y) {
+        float[] values = this.cache.get(this.key, z, x, y);
+        return (values != null && values.length == SIZE * SIZE) ? values : null;
+    }
+
+    /**
+     * Compute tile (z, x, y), reusing the pixels of its parent if cached.
+     */
+    private int[] compute(int z, int x, int y, Colorizer colorizer) {
+        float[] values = null;
+        if (z > 0) {
+            float[] parent = this.cached(z - 1, x / 2, y / 2);
+            if (parent != null) {
+                values = quarter(parent, x % 2, y % 2);
+            }
+        }
+        if (values == null) {
+            values = new float[SIZE * SIZE];
+            Arrays.fill(values, Float.NaN);
+        }
+
+        BufferedImage img = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        FrameTask task = new FrameTask(this.set, this.getArea(z, x, y), colorizer, img, SIZE, SIZE, values);
+        List<String> errs = task.startParallel(this.pool);
+        if (!errs.isEmpty()) {
+            throw new IllegalStateException(errs.get(0));
+        }
+        this.reused.addAndGet(task.getReused());
+        try {
+            this.cache.put(this.key, z, x, y, values, SIZE, this.set.getIterations(), this.set.isSmooth());
+        } catch (IOException e) {
+            // The tile is still available in memory
+            Plotter.info("Could not store tile: " + e.getMessage());
+        }
+        return task.getPixels();
+    }
+
+    /**
+     * The known values of the quarter (dx, dy) of a tile: pixel (i, j) is pixel (i / 2, j / 2) of the quarter.
+     */
+    static float[] quarter(float[] parent, int dx, int dy) {
+        float[] values = new float[SIZE * SIZE];
+        Arrays.fill(values, Float.NaN);
+        for (int i = 0; i < SIZE; i += 2) {
+            int from = (dy * SIZE + i) / 2 * SIZE + dx * SIZE / 2;
+            for (int j = 0; j < SIZE; j += 2) {
+                values[i * SIZE + j] = parent[from + j / 2];
+            }
+        }
+        return values;
+    }
+
+    private static void check(int z, int x, int y) {
+        if (z < 0 || z > MAX_LEVEL) {
+            throw new InvalidTile(String.format("Zoom level should be between 0 and %d!", MAX_LEVEL));
+        } else if (x < 0 || y < 0 || x >= (1L << z) || y >= (1L << z)) {
+            throw new InvalidTile(String.format("No tile (%d, %d) at zoom level %d!", x, y, z));
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.mandel.plotter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.colorizer.ColorizerBuilder;
+import com.mandel.sets.BaseSet;
+import com.mandel.sets.SetBuilder;
+
+
+/**
+* TileServer -- Serves the tiles of TileRenderer over HTTP, at /{set}/{z}/{x}/{y}.png.
+*
+* The parameter, transformation, number of iterations and colors may be
+* given in the query string (e.g. ?param=-0.4;0.6&iter=200), the defaults
+* being those of the server. Note that '+' must be encoded as %2B. The
+* number of iterations cannot exceed a maximum set by the server.
+*
+* Requests are handled by a fixed number of threads, and tiles are
+* rendered by a fixed number of threads, with a bounded queue: requests
+* are turned down with 503 when it is full. Concurrent requests for the
+* same tile share the same render, which is cancelled if all of them give
+* up waiting before it has started. Only the renderers of recently
+* requested sets are kept.
+*/
+public class TileServer {
+
+    // Renders waiting for a thread, beyond which requests are turned down
+    static final int QUEUE_SIZE = 256;
+    // Longest wait for a tile, in seconds
+    static final int TIMEOUT = 30;
+    // Threads handling requests, most of which wait for renders
+    static final int HANDLERS = 32;
+    // Renderers kept, the least recently used ones being dropped
+    static final int RENDERERS = 64;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ThreadPoolExecutor renderers;
+    private final ForkJoinPool pool;
+    private final TileCache cache;
+    private final int compression;
+    private final Map<String, TileRenderer> tileRenderers;
+    private final Map<String, Pending> pending;
+    private final AtomicLong renders;
+    private String transformation = "", param = "", color = "#000000..#ffffff";
+    private int iterations = 80, maxIterations = 0;
+    private double periodicity = BaseSet.DEFAULT_PERIODICITY, bailout = 2;
+    private boolean smooth = false;
+
+    /**
+    * Pending -- A render, with the number of requests waiting for it.
+    */
+    private static class Pending {
+        private Future<byte[]> future;
+        private int waiters = 0;
+    }
+
+    /**
+     * Build a server listening on port (0 for any free port), rendering tiles on numThreads threads.
+     */
+    public TileServer(int port, int numThreads, TileCache cache, int compression) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.handlers = Executors.newFixedThreadPool(HANDLERS);
+        this.renderers = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+        this.pool = new ForkJoinPool(numThreads);
+        this.cache = cache;
+        this.compression = compression;
+        this.tileRenderers = new LinkedHashMap<String, TileRenderer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TileRenderer> eldest) {
+                return this.size() > RENDERERS;
+            }
+        };
+        this.pending = new HashMap<String, Pending>();
+        this.renders = new AtomicLong();
+
+        this.server.setExecutor(this.handlers);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Set the defaults of the options which may be given in the query string.
+     */
+    public void setDefaults(String transformation, String param, int iterations, String color) {
+        this.transformation = transformation;
+        this.param = param;
+        this.iterations = iterations;
+        this.color = color;
+    }
+
+    /**
+     * Set the largest number of iterations which may be requested, at least the default one.
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Set the escape settings of all sets (see BaseSet).
+     */
+    public void setEscape(double periodicity, double bailout, boolean smooth) {
+        this.periodicity = periodicity;
+        this.bailout = bailout;
+        this.smooth = smooth;
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.handlers.shutdownNow();
+        this.renderers.shutdownNow();
+        this.pool.shutdownNow();
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Number of renders started so far, concurrent requests for the same tile sharing one.
+     */
+    public long getRenders() {
+        return this.renders.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        if (!exchange.getRequestMethod().equals("GET") || parts.length != 5 || !parts[4].endsWith(".png")) {
+            respond(exchange, 404, "Tiles are found at /{set}/{z}/{x}/{y}.png");
+            return;
+        }
+
+        final int z, x, y;
+        final TileRenderer renderer;
+        final Colorizer colorizer;
+        try {
+            z = Integer.parseInt(parts[2]);
+            x = Integer.parseInt(parts[3]);
+            y = Integer.parseInt(parts[4].substring(0, parts[4].length() - 4));
+        } catch (NumberFormatException e) {
+            respond(exchange, 404, "Could not parse tile coordinates!");
+            return;
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        try {
+            renderer = this.getRenderer(parts[1], query);
+            colorizer = ColorizerBuilder.parse(get(query, "color", this.color));
+            renderer.getArea(z, x, y);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+            return;
+        }
+
+        String id = String.format("%s/%d/%d/%d/%s", renderer.getKey(), z, x, y, get(query, "color", this.color));
+        Pending render;
+        try {
+            render = this.acquire(id, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    renderer.writePng(z, x, y, colorizer, out, compression);
+                    return out.toByteArray();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            respond(exchange, 503, "Too many tiles to render, try again later");
+            return;
+        }
+
+        try {
+            byte[] png = render.future.get(TIMEOUT, TimeUnit.SECONDS);
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, png.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(png);
+            out.close();
+        } catch (TimeoutException e) {
+            respond(exchange, 503, "Tile took too long to render");
+        } catch (InterruptedException e) {
+            respond(exchange, 503, "Server is shutting down");
+        } catch (ExecutionException e) {
+            respond(exchange, 500, e.getCause().getMessage());
+        } finally {
+            this.release(id, render);
+        }
+    }
+
+    /**
+     * The renderer of set with the options of query, built once for recently used options.
+     */
+    private TileRenderer getRenderer(String name, Map<String, String> query) {
+        String transformation = get(query, "transformation", this.transformation);
+        String param = get(query, "param", this.param);
+        int iterations;
+        try {
+            iterations = Integer.parseInt(get(query, "iter", String.valueOf(this.iterations)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("could not parse supplied value for 'iter'");
+        }
+        int maxIterations = Math.max(this.maxIterations, this.iterations);
+        if (iterations < 1 || iterations > maxIterations) {
+            throw new IllegalArgumentException(
+                String.format("Number of iterations should be between 1 and %d!", maxIterations));
+        }
+        String spec = String.format("%s\n%s\n%s\n%d", name.toLowerCase(), transformation, param, iterations);
+        synchronized (this.tileRenderers) {
+            TileRenderer renderer = this.tileRenderers.get(spec);
+            if (renderer != null) {
+                return renderer;
+            }
+        }
+        // Built outside the lock, as compiling a transformation takes a while
+        BaseSet set = SetBuilder.build(name, transformation, param, iterations);
+        set.setPeriodicity(this.periodicity);
+        set.setBailout(this.bailout);
+        set.setSmooth(this.smooth);
+        TileRenderer renderer = new TileRenderer(set, TileRenderer.key(name, transformation, param, set),
+                                                 this.cache, this.pool);
+        synchronized (this.tileRenderers) {
+            TileRenderer other = this.tileRenderers.get(spec);
+            if (other != null) {
+                return other;
+            }
+            this.tileRenderers.put(spec, renderer);
+        }
+        return renderer;
+    }
+
+    /**
+     * Wait for the render id, submitting it if it is not pending yet.
+     */
+    private Pending acquire(final String id, final Callable<byte[]> task) {
+        synchronized (this.pending) {
+            Pending render = this.pending.get(id);
+            if (render == null) {
+                final Pending created = new Pending();
+                created.future = this.renderers.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        try {
+                            return task.call();
+                        } finally {
+                            synchronized (pending) {
+                                if (pending.get(id) == created) {
+                                    pending.remove(id);
+                                }
+                            }
+                        }
+                    }
+                });
+                this.renders.incrementAndGet();
+                this.pending.put(id, created);
+                render = created;
+            }
+            render.waiters++;
+            return render;
+        }
+    }
+
+    /**
+     * Stop waiting for the render id, which is cancelled if nobody waits for it anymore.
+     */
+    private void release(String id, Pending render) {
+        synchronized (this.pending) {
+            if (--render.waiters == 0 && !render.future.isDone()) {
+                render.future.cancel(false);
+                if (this.pending.get(id) == render) {
+                    this.pending.remove(id);
+                }
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String get(Map<String, String> query, String name, String defVal) {
+        String value = query.get(name);
+        return (value != null) ? value : defVal;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> res = new HashMap<String, String>();
+        if (query == null) {
+            return res;
+        }
+        for (String pair: query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                res.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return res;
+    }
+}
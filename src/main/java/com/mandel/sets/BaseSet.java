@@ -1,8 +1,10 @@
 package com.mandel.sets;
 
 import java.lang.UnsupportedOperationException;
+import java.math.BigDecimal;
 
 import com.mandel.complex.Complex;
+import com.mandel.parser.CompiledFormula;
 import com.mandel.plotter.PlotArea;
 
 
@@ -11,28 +13,290 @@ import com.mandel.plotter.PlotArea;
 */
 public abstract class BaseSet {
 
+    // Default bound of |z|^2, i.e. a bailout radius of 2
     protected static final float BOUND = 4.0f;
+    public static final double DEFAULT_PERIODICITY = 1e-12;
+    private static final double LOG_2 = Math.log(2);
+    // Largest value of a point out of the set, since 1 is for points of the set
+    private static final float MAX_ESCAPED = 1.f - Math.ulp(1.f);
     protected int iterations;
     protected BaseTransform transformation;
-    protected abstract Complex transform(Complex cur, Complex z);
+    protected double periodicity = 0;
+    protected boolean vectorized = false;
+    protected boolean smooth = false;
+    protected boolean counting = false;
+    // Bound of |z|^2 for a point to escape, and its logarithm
+    protected double bound = BOUND;
+    protected double logBound = Math.log(BOUND);
+
+    // SIMD kernel, only available when running with the jdk.incubator.vector module
+    protected static final EscapeKernel VECTOR_KERNEL = loadVectorKernel();
+    // Iterations saved by the current thread on points of the set, when counting
+    private static final ThreadLocal<long[]> saved = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private static EscapeKernel loadVectorKernel() {
+        try {
+            return (EscapeKernel)Class.forName("com.mandel.sets.VectorKernel").getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
 
     public abstract String toString();
 
     public abstract PlotArea getDefaultArea();
 
+    public int getIterations() {
+        return this.iterations;
+    }
+
+    /**
+     * Enable orbit periodicity checking with the given tolerance, 0 to disable it.
+     *
+     * Points whose orbit comes back within tolerance of a previous value
+     * are considered to be in the set without further iterations.
+     */
+    public void setPeriodicity(double tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Periodicity tolerance cannot be negative!");
+        }
+        this.periodicity = tolerance;
+    }
+
+    public double getPeriodicity() {
+        return this.periodicity;
+    }
+
+    public double getBailout() {
+        return Math.sqrt(this.bound);
+    }
+
+    /**
+     * Set the bailout radius: points escape once |z| exceeds it.
+     *
+     * The radius should be at least 2, which is enough for z^2 + c. Larger
+     * radii give a better smooth iteration count.
+     */
+    public void setBailout(double radius) {
+        if (!(radius >= 2)) {
+            throw new IllegalArgumentException("Bailout radius should be at least 2!");
+        }
+        this.bound = radius * radius;
+        this.logBound = Math.log(this.bound);
+    }
+
+    /**
+     * Return a smooth (continuous) iteration count rather than an integer one.
+     *
+     * The escape iteration i is refined with the value of |z| at escape:
+     *   mu = i + 1 - log2(log |z| / log R)
+     * R being the bailout radius. This is exact for z^2 + c, and an
+     * approximation for custom transformations.
+     */
+    public void setSmooth(boolean smooth) {
+        this.smooth = smooth;
+    }
+
+    public boolean isSmooth() {
+        return this.smooth;
+    }
+
+    /**
+     * Count the iterations saved on points found in the set early, by the
+     * main cardioid and bulb test or by periodicity checking.
+     *
+     * The iterations actually carried out are then the escape counts of
+     * the points, those of the set counting for the whole number of
+     * iterations, minus the iterations saved (see takeSaved).
+     */
+    public void setCounting(boolean counting) {
+        this.counting = counting;
+    }
+
+    /**
+     * Iterations saved by the current thread since the previous call, on sets counting them.
+     */
+    public static long takeSaved() {
+        long[] count = saved.get();
+        long res = count[0];
+        count[0] = 0;
+        return res;
+    }
+
+    /**
+     * Value of a point found in the set after done iterations.
+     */
+    protected float inSet(int done) {
+        if (this.counting) {
+            saved.get()[0] += this.iterations - done;
+        }
+        return 1.f;
+    }
+
+    /**
+     * Value of a point escaping at iteration i, with |z|^2 = norm.
+     */
+    protected float escaped(int i, double norm) {
+        if (!this.smooth) {
+            return (float)i / this.iterations;
+        }
+        double mu = i + 1 - Math.log(Math.log(norm) / this.logBound) / LOG_2;
+        return Math.min((float)(Math.max(mu, 0) / this.iterations), MAX_ESCAPED);
+    }
+
+    /**
+     * Give set the same escape settings as this one, for sets derived from it.
+     */
+    protected <T extends BaseSet> T inherit(T set) {
+        set.periodicity = this.periodicity;
+        set.vectorized = this.vectorized;
+        set.smooth = this.smooth;
+        set.counting = this.counting;
+        set.bound = this.bound;
+        set.logBound = this.logBound;
+        return set;
+    }
+
+    /**
+     * Whether the SIMD kernel can be used in this runtime.
+     */
+    public static boolean isVectorAvailable() {
+        return VECTOR_KERNEL != null;
+    }
+
+    /**
+     * Compute whole lines with the SIMD kernel, when available.
+     *
+     * Only the built-in z^2 + c transformation is vectorized.
+     */
+    public void setVectorized(boolean vectorized) {
+        this.vectorized = vectorized;
+    }
+
+    protected boolean useVectorKernel() {
+        return this.vectorized && VECTOR_KERNEL != null && this.transformation instanceof MandelbrotTransform;
+    }
+
+    /**
+     * Same as contains, for the n points (x[k], y), storing the values into out.
+     */
+    public void containsLine(double[] x, double y, float[] out, int n) {
+        for (int k = 0; k < n; k++) {
+            out[k] = this.contains(x[k], y);
+        }
+    }
+
+    /**
+     * The same set in double-double precision, with coordinates relative to (x, y).
+     *
+     * Returns null when double-double precision is not available for this set.
+     */
+    public BaseSet extended(BigDecimal x, BigDecimal y) {
+        return null;
+    }
+
     /**
      * Iterate the transformation until the escape condition is reached.
      * The closer to 1.0, the most likely (x, y) belongs to the set.
      */
-    public float contains(double x, double y) {
-        Complex z , cur;
-        z = new Complex(x, y);
-        cur = z;
+    public abstract float contains(double x, double y);
+
+    /**
+     * Iterate the transformation starting from z, with parameter c.
+     *
+     * The fastest available path is picked depending on the transformation.
+     */
+    protected float escape(double zx, double zy, double cx, double cy) {
+        if (this.transformation instanceof MandelbrotTransform) {
+            return this.escapeQuadratic(zx, zy, cx, cy);
+        } else if (this.transformation instanceof CustomTransform) {
+            CompiledFormula formula = ((CustomTransform)this.transformation).getFormula();
+            return this.escapeFormula(formula, zx, zy, cx, cy);
+        }
+        Complex cur = new Complex(zx, zy), c = new Complex(cx, cy);
+        for (int i = 0; i < this.iterations; ++i) {
+            double norm = cur.square_norm();
+            if (norm > this.bound) {
+                return this.escaped(i, norm);
+            }
+            cur = this.transformation.apply(cur, c);
+        }
+        return 1.f;
+    }
+
+    /**
+     * Iterate z -> z^2 + c starting from z, without any allocation.
+     *
+     * Operations are carried out in the same order as in Complex so that
+     * the result is exactly the same as with MandelbrotTransform.
+     *
+     * Periodicity is checked with Brent's method: the orbit is compared to
+     * a saved value, which is refreshed after a number of steps doubling
+     * each time, so that cycles of any length are eventually caught.
+     */
+    protected float escapeQuadratic(double zx, double zy, double cx, double cy) {
+        final double tolerance = this.periodicity;
+        final boolean periodic = tolerance > 0;
+        double tmp, px = zx, py = zy;
+        int steps = 0, period = 1;
         for (int i = 0; i < this.iterations; ++i) {
-            if (cur.square_norm() > this.BOUND) {
-                return (float)i / this.iterations;
+            double norm = zx * zx + zy * zy;
+            if (norm > this.bound) {
+                return this.escaped(i, norm);
+            }
+            tmp = cx + (zx * zx - zy * zy);
+            zy = cy + (zx * zy + zy * zx);
+            zx = tmp;
+            if (periodic) {
+                if (Math.abs(zx - px) < tolerance && Math.abs(zy - py) < tolerance) {
+                    return this.inSet(i + 1);
+                }
+                if (++steps == period) {
+                    steps = 0;
+                    period <<= 1;
+                    px = zx;
+                    py = zy;
+                }
+            }
+        }
+        return 1.f;
+    }
+
+    /**
+     * Iterate a compiled formula f(z, c), allocating only once per point.
+     *
+     * Periodicity is checked the same way as in escapeQuadratic.
+     */
+    protected float escapeFormula(CompiledFormula formula, double zx, double zy, double cx, double cy) {
+        final double tolerance = this.periodicity;
+        final boolean periodic = tolerance > 0;
+        double[] out = formula.newBuffer();
+        double px = zx, py = zy;
+        int steps = 0, period = 1;
+        for (int i = 0; i < this.iterations; ++i) {
+            double norm = zx * zx + zy * zy;
+            if (norm > this.bound) {
+                return this.escaped(i, norm);
+            }
+            formula.apply(zx, zy, cx, cy, out);
+            zx = out[0];
+            zy = out[1];
+            if (periodic) {
+                if (Math.abs(zx - px) < tolerance && Math.abs(zy - py) < tolerance) {
+                    return this.inSet(i + 1);
+                }
+                if (++steps == period) {
+                    steps = 0;
+                    period <<= 1;
+                    px = zx;
+                    py = zy;
+                }
             }
-            cur = this.transform(cur, z);
         }
         return 1.f;
     }
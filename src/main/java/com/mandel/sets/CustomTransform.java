@@ -1,25 +1,86 @@
 package com.mandel.sets;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
 import com.mandel.complex.Complex;
 import com.mandel.parser.AST;
 import com.mandel.parser.BaseNode;
+import com.mandel.parser.CompiledFormula;
+import com.mandel.parser.FormulaCompiler;
+import com.mandel.parser.Optimizer;
+import com.mandel.parser.Program;
 
 
 /**
 * CustomTransform -- A transformation based on some formula.
 *
 * This transformation parses the formula into an AST, which is then
-* used as the transformer to generate the sequence.
+* simplified by the Optimizer and compiled into a CompiledFormula used
+* as the transformer to generate the sequence. Should bytecode
+* generation be unavailable, the formula is compiled into a Program for
+* the register-based interpreter.
+*
+* Transformations are immutable, so that those of the same formula are
+* shared (see parse) rather than parsed and compiled again by each set.
 */
 class CustomTransform implements BaseTransform {
+
+    // Formulas kept by parse, the least recently used ones being dropped
+    static final int CACHE_SIZE = 64;
+
+    private static final Map<String, CustomTransform> cache =
+        new LinkedHashMap<String, CustomTransform>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CustomTransform> eldest) {
+                return this.size() > CACHE_SIZE;
+            }
+        };
+
     private final BaseNode root;
+    private final CompiledFormula formula;
 
     public CustomTransform(String input) { 
-        this.root = AST.parse(input).reduce();
+        this.root = Optimizer.optimize(AST.parse(input).reduce());
+        CompiledFormula formula;
+        try {
+            formula = FormulaCompiler.compile(this.root, "z", "c");
+        } catch (FormulaCompiler.CompilationError e) {
+            formula = Program.compile(this.root, "z", "c");
+        }
+        this.formula = formula;
     }
+
+    /**
+     * The transformation of formula input, built once for recently used formulas.
+     */
+    public static CustomTransform parse(String input) {
+        synchronized (cache) {
+            CustomTransform transform = cache.get(input);
+            if (transform != null) {
+                return transform;
+            }
+        }
+        // Built outside the lock, as compiling takes a while
+        CustomTransform transform = new CustomTransform(input);
+        synchronized (cache) {
+            CustomTransform other = cache.get(input);
+            if (other != null) {
+                return other;
+            }
+            cache.put(input, transform);
+        }
+        return transform;
+    }
+
+    /**
+     * The compiled formula of (z, c).
+     */
+    public CompiledFormula getFormula() {
+        return this.formula;
+    }
+
     @Override
     public Complex apply(Complex z, Complex c) {
         Map<String, Complex> context = new TreeMap<String, Complex>();
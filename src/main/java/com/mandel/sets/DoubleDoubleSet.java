@@ -0,0 +1,75 @@
+package com.mandel.sets;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import com.mandel.complex.Complex;
+import com.mandel.complex.DoubleDoubleComplex;
+import com.mandel.plotter.PlotArea;
+
+
+/**
+* DoubleDoubleSet -- A Mandelbrot or Julia set computed in double-double precision.
+*
+* Used for zooms too deep for double precision, down to pixel spacings
+* of about 1e-28. The z^2 + c transformation is iterated with
+* DoubleDoubleComplex, allocating only once per point.
+*
+* Note that contains takes coordinates relative to the center, which is
+* stored with full precision.
+*/
+public class DoubleDoubleSet extends BaseSet {
+
+    private final BigDecimal x, y;
+    private final DoubleDoubleComplex center;
+    // Julia set parameter, null for the Mandelbrot set
+    private final DoubleDoubleComplex param;
+
+    /**
+     * Build the Mandelbrot set around (x, y) if param is null, the Julia set of parameter param otherwise.
+     */
+    public DoubleDoubleSet(BigDecimal x, BigDecimal y, Complex param, int iterations) {
+        this.x = x;
+        this.y = y;
+        this.center = new DoubleDoubleComplex(x, y);
+        this.param = (param == null) ? null : new DoubleDoubleComplex(param.real(), 0, param.imag(), 0);
+        this.iterations = iterations;
+        this.transformation = new MandelbrotTransform();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s set (double-double precision around %s + %si)",
+                             (this.param == null) ? "Mandelbrot" : "Julia",
+                             this.x.round(MathContext.DECIMAL64), this.y.round(MathContext.DECIMAL64));
+    }
+
+    @Override
+    public PlotArea getDefaultArea() {
+        return new PlotArea(this.x, this.y, 2);
+    }
+
+    /**
+     * Same as MandelbrotSet.contains or JuliaSet.contains, for the point at offset (dx, dy) from the center.
+     *
+     * Periodicity is not checked, since orbits are not compared with enough precision.
+     */
+    @Override
+    public float contains(double dx, double dy) {
+        DoubleDoubleComplex z = new DoubleDoubleComplex(this.center).add(dx, dy), c = this.param;
+        if (c == null) {
+            if (MandelbrotSet.isInMainComponents(z.real(), z.imag())) {
+                return this.inSet(0);
+            }
+            c = new DoubleDoubleComplex(z);
+        }
+        for (int i = 0; i < this.iterations; ++i) {
+            double norm = z.square_norm();
+            if (norm > this.bound) {
+                return this.escaped(i, norm);
+            }
+            z.square().add(c);
+        }
+        return 1.f;
+    }
+}
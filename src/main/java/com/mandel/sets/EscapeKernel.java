@@ -0,0 +1,23 @@
+package com.mandel.sets;
+
+
+/**
+* EscapeKernel -- Iterates z -> z^2 + c for a run of points on the same line.
+*
+* Results are the same as with BaseSet.escapeQuadratic, point by point,
+* the iteration count, periodicity and bailout being those of set.
+* Points whose value in out is not NaN are already known, and are left
+* untouched.
+*/
+interface EscapeKernel {
+
+    /**
+     * Mandelbrot set: z_0 = c = x[k] + iy, for k in [0, n[.
+     */
+    public void mandelbrot(BaseSet set, double[] x, double y, int n, float[] out);
+
+    /**
+     * Julia set: z_0 = x[k] + iy, for k in [0, n[, and c = cx + icy.
+     */
+    public void julia(BaseSet set, double[] x, double y, double cx, double cy, int n, float[] out);
+}
@@ -1,5 +1,8 @@
 package com.mandel.sets;
 
+import java.math.BigDecimal;
+import java.util.Arrays;
+
 import com.mandel.complex.Complex;
 import com.mandel.plotter.PlotArea;
 
@@ -43,7 +46,25 @@ public class JuliaSet extends BaseSet {
     }
 
     @Override
-    protected Complex transform(Complex cur, Complex z) {
-        return this.transformation.apply(cur, this.c);
+    public float contains(double x, double y) {
+        return this.escape(x, y, this.c.real(), this.c.imag());
+    }
+
+    @Override
+    public void containsLine(double[] x, double y, float[] out, int n) {
+        if (!this.useVectorKernel()) {
+            super.containsLine(x, y, out, n);
+            return;
+        }
+        Arrays.fill(out, 0, n, Float.NaN);
+        VECTOR_KERNEL.julia(this, x, y, this.c.real(), this.c.imag(), n, out);
+    }
+
+    @Override
+    public BaseSet extended(BigDecimal x, BigDecimal y) {
+        if (!(this.transformation instanceof MandelbrotTransform)) {
+            return null;
+        }
+        return this.inherit(new DoubleDoubleSet(x, y, this.c, this.iterations));
     }
 }
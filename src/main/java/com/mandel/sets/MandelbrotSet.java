@@ -1,5 +1,7 @@
 package com.mandel.sets;
 
+import java.math.BigDecimal;
+
 import com.mandel.complex.Complex;
 import com.mandel.plotter.PlotArea;
 
@@ -31,7 +33,59 @@ public class MandelbrotSet extends BaseSet {
     }
 
     @Override
-    protected Complex transform(Complex cur, Complex z) {
-        return this.transformation.apply(cur, z);
+    public float contains(double x, double y) {
+        if (this.transformation instanceof MandelbrotTransform && isInMainComponents(x, y)) {
+            return this.inSet(0);
+        }
+        return this.escape(x, y, x, y);
+    }
+
+    @Override
+    public void containsLine(double[] x, double y, float[] out, int n) {
+        if (!this.useVectorKernel()) {
+            super.containsLine(x, y, out, n);
+            return;
+        }
+        for (int k = 0; k < n; k++) {
+            out[k] = isInMainComponents(x[k], y) ? this.inSet(0) : Float.NaN;
+        }
+        VECTOR_KERNEL.mandelbrot(this, x, y, n, out);
+    }
+
+    @Override
+    public BaseSet extended(BigDecimal x, BigDecimal y) {
+        if (!(this.transformation instanceof MandelbrotTransform)) {
+            return null;
+        }
+        return this.inherit(new DoubleDoubleSet(x, y, null, this.iterations));
+    }
+
+    /**
+     * The same set computed by perturbation around (x, y), for pixels spaced by spacing.
+     *
+     * Returns null when perturbation does not apply, i.e. for custom transformations.
+     */
+    public PerturbationSet perturbed(BigDecimal x, BigDecimal y, double spacing) {
+        if (!(this.transformation instanceof MandelbrotTransform)) {
+            return null;
+        }
+        return this.inherit(new PerturbationSet(x, y, spacing, this.iterations, this.getBailout()));
+    }
+
+    /**
+     * Check whether c = x + iy lies in the main cardioid or in the period-2 bulb.
+     *
+     * Such points belong to the set, so that iterating is pointless. This only
+     * holds for the z^2 + c transformation.
+     */
+    static boolean isInMainComponents(double x, double y) {
+        double y2 = y * y;
+        double xq = x - 0.25;
+        double q = xq * xq + y2;
+        if (q * (q + xq) < 0.25 * y2) {
+            return true;
+        }
+        double xb = x + 1;
+        return xb * xb + y2 < 0.0625;
     }
 }
@@ -0,0 +1,117 @@
+package com.mandel.sets;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import com.mandel.plotter.PlotArea;
+
+
+/**
+* PerturbationSet -- The Mandelbrot set around a reference point, for deep zooms.
+*
+* A single reference orbit X_n is computed with arbitrary precision at the
+* reference point C. Every other point C + dc is then computed in double
+* precision as a perturbation d_n of the reference orbit, z_n = X_n + d_n:
+*   d_n+1 = 2 X_n d_n + d_n^2 + dc
+* which only involves small numbers, unlike z_n.
+*
+* Glitches (loss of precision when z_n gets smaller than d_n, or when the
+* reference orbit escapes) are detected and the perturbation is rebased on
+* the start of the reference orbit, with d_n = z_n. The reference orbit
+* stops at the bailout radius of the set, as the points around it do.
+*
+* Note that contains takes coordinates relative to the reference point.
+*/
+public class PerturbationSet extends BaseSet {
+
+    private final BigDecimal refX, refY;
+    // Reference orbit, starting at 0 so that rebasing is possible
+    private final double[] orbitX, orbitY;
+
+    /**
+     * Build the set around (refX, refY), spacing being the smallest
+     * distance between points to be computed, with given bailout radius.
+     */
+    public PerturbationSet(BigDecimal refX, BigDecimal refY, double spacing, int iterations, double bailout) {
+        this.refX = refX;
+        this.refY = refY;
+        this.iterations = iterations;
+        this.transformation = new MandelbrotTransform();
+        this.setBailout(bailout);
+
+        // Enough digits to resolve the spacing, and some more
+        int digits = Math.max(20, (int)Math.ceil(-Math.log10(spacing)) + 20);
+        MathContext mc = new MathContext(digits);
+        BigDecimal bound = BigDecimal.valueOf(this.bound);
+
+        double[] orbitX = new double[iterations + 1], orbitY = new double[iterations + 1];
+        BigDecimal x = BigDecimal.ZERO, y = BigDecimal.ZERO, tmp;
+        int n = 0;
+        while (true) {
+            orbitX[n] = x.doubleValue();
+            orbitY[n] = y.doubleValue();
+            if (n == iterations || x.multiply(x, mc).add(y.multiply(y, mc), mc).compareTo(bound) > 0) {
+                break;
+            }
+            tmp = x.multiply(x, mc).subtract(y.multiply(y, mc), mc).add(refX, mc);
+            y = x.multiply(y, mc).multiply(BigDecimal.valueOf(2), mc).add(refY, mc);
+            x = tmp;
+            n++;
+        }
+        this.orbitX = new double[n + 1];
+        this.orbitY = new double[n + 1];
+        System.arraycopy(orbitX, 0, this.orbitX, 0, n + 1);
+        System.arraycopy(orbitY, 0, this.orbitY, 0, n + 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Mandelbrot set (perturbation around %s + %si)",
+                             this.refX.round(MathContext.DECIMAL64), this.refY.round(MathContext.DECIMAL64));
+    }
+
+    @Override
+    public PlotArea getDefaultArea() {
+        return new PlotArea(this.refX, this.refY, 2);
+    }
+
+    /**
+     * Length of the reference orbit, less than iterations + 1 if it escapes.
+     */
+    public int getReferenceLength() {
+        return this.orbitX.length;
+    }
+
+    /**
+     * Same as MandelbrotSet.contains, for the point at offset (dx, dy) from the reference.
+     *
+     * Iteration i of MandelbrotSet, which starts from z_0 = c, is iteration
+     * i + 1 of the reference orbit, which starts from 0.
+     */
+    @Override
+    public float contains(double dx, double dy) {
+        final double[] orbitX = this.orbitX, orbitY = this.orbitY;
+        final int last = orbitX.length - 1;
+        double ddx = 0, ddy = 0, zx, zy, tmp;
+        int m = 0;
+        for (int i = 0; i < this.iterations; ++i) {
+            tmp = 2 * (orbitX[m] * ddx - orbitY[m] * ddy) + (ddx * ddx - ddy * ddy) + dx;
+            ddy = 2 * (orbitX[m] * ddy + orbitY[m] * ddx) + 2 * ddx * ddy + dy;
+            ddx = tmp;
+            m++;
+            zx = orbitX[m] + ddx;
+            zy = orbitY[m] + ddy;
+            double norm = zx * zx + zy * zy;
+            if (norm > this.bound) {
+                return this.escaped(i, norm);
+            }
+            if (norm < ddx * ddx + ddy * ddy || m == last) {
+                // Glitch, or end of the reference orbit: rebase
+                ddx = zx;
+                ddy = zy;
+                m = 0;
+            }
+        }
+        return 1.f;
+    }
+}
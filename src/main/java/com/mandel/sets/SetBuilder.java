@@ -16,7 +16,7 @@ public class SetBuilder {
         if (raw_transform.equals("")) {
             transform = new MandelbrotTransform();
         } else {
-            transform = new CustomTransform(raw_transform);
+            transform = CustomTransform.parse(raw_transform);
         }
 
         switch (set.toLowerCase()) {
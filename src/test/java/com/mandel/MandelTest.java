@@ -2,10 +2,16 @@ package com.mandel.tests;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import javax.imageio.ImageIO;
 
 import static org.junit.Assert.assertEquals;
@@ -15,6 +21,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.mandel.plotter.Plotter;
+import com.mandel.sets.BaseSet;
 import com.mandel.sets.SetBuilder;
 
 
@@ -62,6 +69,23 @@ public class MandelTest {
         }
     }
 
+    /**
+     * Compare two generated images pixel for pixel.
+     */
+    public static void assertSameImage(String actual, String expected) throws AssertionError, IOException {
+        BufferedImage actualImg = ImageIO.read(new File(actual));
+        BufferedImage expectedImg = ImageIO.read(new File(expected));
+
+        assertEquals(expectedImg.getWidth(), actualImg.getWidth());
+        assertEquals(expectedImg.getHeight(), actualImg.getHeight());
+
+        for (int i = 0; i < expectedImg.getWidth(); i++) {
+            for (int j = 0; j < expectedImg.getHeight(); j++) {
+                assertEquals(expectedImg.getRGB(i, j), actualImg.getRGB(i, j));
+            }
+        }
+    }
+
     public static void assertOutContains(String expected) throws AssertionError {
         String output = outContent.toString();
         assertTrue(
@@ -138,6 +162,407 @@ public class MandelTest {
         }
     }
 
+    @Test
+    public void testMandelNoPeriodicity() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -resolution 10 -periodicity off");
+            assertImageEquals("test.png", "expected_test_mandel.png");
+            assertOutContains("Result saved in test.png");
+        } finally {
+            File file = new File("test.png");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMandelSubdivide() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -resolution 10 -strategy subdivide");
+            assertImageEquals("test.png", "expected_test_mandel.png");
+            assertOutContains("Result saved in test.png");
+        } finally {
+            File file = new File("test.png");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMandelProgressive() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -resolution 10 -strategy progressive -j 2");
+            // Pixels are computed in passes, but the final plot is the same
+            assertImageEquals("test.png", "expected_test_mandel.png");
+            assertOutContains("Result saved in test.png");
+        } finally {
+            File file = new File("test.png");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMandelProgressiveError() throws IOException {
+        try {
+            // Dividing by zero at the second pixel of the top row, only computed by the last pass
+            call("-f test.png -area \"0;1;-1;0\" -resolution 16 -transformation \"z^2+c+1/(c-0.0625)\""
+                 + " -strategy progressive -raw test.raw");
+            assertErrContains("Cannot divide by zero!");
+            // Previews are not left behind
+            assertTrue(!new File("test.png").exists());
+            assertTrue(!new File("test.raw").exists());
+        } finally {
+            new File("test.png").delete();
+            new File("test.raw").delete();
+        }
+    }
+
+    @Test
+    public void testInvalidPeriodicity() throws IOException {
+        call("-periodicity maybe");
+        assertErrContains("could not parse supplied value for 'periodicity'");
+    }
+
+    @Test
+    public void testMandelSimd() throws IOException {
+        try {
+            // The build runs tests with the jdk.incubator.vector module, and
+            // the scalar loop is used otherwise
+            call("-f test.png -set mandelbrot -resolution 10 -simd on");
+            assertImageEquals("test.png", "expected_test_mandel.png");
+            assertOutContains("Result saved in test.png");
+        } finally {
+            File file = new File("test.png");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSimdSameAsScalar() throws IOException {
+        String[] plots = {"-set mandelbrot -area \"-0.7435;0.1314;0.002\" -resolution 40000 -iter 500",
+                          "-set mandelbrot -area \"-0.75;0.1;0.05\" -resolution 2000 -iter 200 -smooth on",
+                          "-set julia -param \"-0.8;0.156\" -resolution 40 -iter 300 -bailout 10"};
+        try {
+            for (String plot: plots) {
+                call("-f test.png -simd off " + plot);
+                call("-f test2.png -simd on " + plot);
+                assertSameImage("test2.png", "test.png");
+            }
+        } finally {
+            new File("test.png").delete();
+            new File("test2.png").delete();
+        }
+    }
+
+    @Test
+    public void testJuliaSimd() throws IOException {
+        try {
+            call("-f test.png -set julia -param \"-0.4;0.6\" -resolution 10 -simd on");
+            assertImageEquals("test.png", "expected_test_julia.png");
+            assertOutContains("Result saved in test.png");
+        } finally {
+            File file = new File("test.png");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMandelDoubleDouble() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -area \"-0.743643887037158704752191506114774;0.131825904205311970493132056385139;1e-14\" -resolution 5e14 -v");
+            assertOutContains("double-double precision");
+            assertOutContains("Result saved in test.png");
+        } finally {
+            File file = new File("test.png");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMandelPerturbation() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -area \"-0.743643887037158704752191506114774;0.131825904205311970493132056385139;1e-30\" -resolution 5e30 -v");
+            assertOutContains("perturbation");
+            assertOutContains("Result saved in test.png");
+        } finally {
+            File file = new File("test.png");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidAreaRadius() throws IOException {
+        call("-area \"0;0;-1\"");
+        assertErrContains("Area radius should be positive!");
+    }
+
+    @Test
+    public void testMandelCompression() throws IOException {
+        for (String level: new String[] {"0", "9"}) {
+            try {
+                call("-f test.png -set mandelbrot -resolution 10 -j 3 -compression " + level);
+                assertImageEquals("test.png", "expected_test_mandel.png");
+                assertOutContains("Result saved in test.png");
+            } finally {
+                File file = new File("test.png");
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Inflate the image data of a PNG file, which checks its Adler-32 checksum.
+     */
+    private static void assertValidImageData(String fil) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(fil));
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try {
+            in.skipBytes(8);
+            while (true) {
+                byte[] chunk = new byte[in.readInt() + 4];
+                in.readFully(chunk);
+                in.readInt();
+                String type = new String(chunk, 0, 4, "US-ASCII");
+                if (type.equals("IDAT")) {
+                    data.write(chunk, 4, chunk.length - 4);
+                } else if (type.equals("IEND")) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(data.toByteArray());
+        byte[] buffer = new byte[1 << 16];
+        try {
+            while (!inflater.finished()) {
+                assertTrue("Truncated image data", inflater.inflate(buffer) > 0 || inflater.finished());
+            }
+        } catch (DataFormatException e) {
+            throw new AssertionError("Invalid image data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Test
+    public void testMandelCompressionBlocks() throws IOException {
+        // More than two blocks of 64 rows, compressed by several threads
+        // and checked against a single thread with the default level
+        for (String strategy: new String[] {"lines", "subdivide"}) {
+            try {
+                call("-f test.png -set mandelbrot -resolution 100 -j 1 -strategy " + strategy);
+                assertTrue(ImageIO.read(new File("test.png")).getHeight() > 2 * 64);
+                for (String level: new String[] {"0", "1", "9"}) {
+                    call("-f test2.png -set mandelbrot -resolution 100 -j 4 -strategy " + strategy
+                         + " -compression " + level);
+                    assertSameImage("test2.png", "test.png");
+                    assertValidImageData("test2.png");
+                }
+            } finally {
+                new File("test.png").delete();
+                new File("test2.png").delete();
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidCompression() throws IOException {
+        call("-compression 10");
+        assertErrContains("could not parse supplied value for 'compression'");
+    }
+
+    @Test
+    public void testMandelRecolor() throws IOException {
+        for (String strategy: new String[] {"lines", "subdivide"}) {
+            try {
+                call("-f test.png -set mandelbrot -resolution 10 -color \"#ff0000..#0000ff\" -raw test.raw -strategy "
+                     + strategy);
+                call("-f test.png -recolor test.raw");
+                assertImageEquals("test.png", "expected_test_mandel.png");
+                assertOutContains("Result saved in test.png");
+            } finally {
+                new File("test.png").delete();
+                new File("test.raw").delete();
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidRecolor() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -resolution 10");
+            call("-f test2.png -recolor test.png");
+            assertErrContains("Not a raw plot file!");
+        } finally {
+            new File("test.png").delete();
+            new File("test2.png").delete();
+        }
+    }
+
+    @Test
+    public void testSmoothValues() {
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 80);
+        set.setBailout(1000);
+        BaseSet smooth = SetBuilder.build("mandelbrot", "", "", 80);
+        smooth.setBailout(1000);
+        smooth.setSmooth(true);
+        for (double x = -2; x < 1; x += 0.07) {
+            float val = set.contains(x, 0.4), smoothVal = smooth.contains(x, 0.4);
+            if (val == 1.f) {
+                assertEquals(1.f, smoothVal, 0);
+            } else {
+                // The smooth count lies around the integer one
+                assertTrue(smoothVal < 1.f);
+                assertTrue(Math.abs(smoothVal - val) <= 1.f / 80);
+            }
+        }
+    }
+
+    @Test
+    public void testMandelSmooth() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -resolution 10 -smooth on -bailout 100");
+            assertOutContains("Result saved in test.png");
+            BufferedImage img = ImageIO.read(new File("test.png"));
+            assertEquals(30, img.getWidth());
+            assertEquals(20, img.getHeight());
+        } finally {
+            new File("test.png").delete();
+        }
+    }
+
+    @Test
+    public void testInvalidBailout() throws IOException {
+        call("-bailout 1.5");
+        assertErrContains("Bailout radius should be at least 2!");
+    }
+
+    @Test
+    public void testMandelAnimation() throws IOException {
+        try {
+            call("-f test.png -set mandelbrot -resolution 10 -frames 3 -zoom 2 -j 2");
+            // The first frame is the plot itself
+            assertImageEquals("test_0000.png", "expected_test_mandel.png");
+            assertTrue(new File("test_0001.png").exists());
+            assertTrue(new File("test_0002.png").exists());
+            assertOutContains("Result saved in test_0000.png to test_0002.png");
+        } finally {
+            for (int k = 0; k < 3; k++) {
+                new File(String.format("test_%04d.png", k)).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testMandelMetrics() throws IOException {
+        for (String strategy: new String[] {"lines", "subdivide"}) {
+            try {
+                call("-f test.png -set mandelbrot -resolution 10 -metrics test.json -j 2 -strategy " + strategy);
+                assertImageEquals("test.png", "expected_test_mandel.png");
+                String json = new String(Files.readAllBytes(new File("test.json").toPath()), "UTF-8");
+                assertTrue(json.contains("\"width\": 30,"));
+                assertTrue(json.contains("\"workers\": [\n    {\"name\": "));
+                // Every pixel falls into the histogram
+                Matcher m = Pattern.compile("\"counts\": \\[([0-9, ]*)\\], \"inSet\": ([0-9]+)").matcher(json);
+                assertTrue(m.find());
+                long pixels = Long.parseLong(m.group(2));
+                for (String count: m.group(1).split(", ")) {
+                    pixels += Long.parseLong(count);
+                }
+                assertEquals(30 * 20, pixels);
+                // Points of the set mostly skip iterations
+                m = Pattern.compile("\"totalIterations\": ([0-9]+)").matcher(json);
+                assertTrue(m.find());
+                assertTrue(Long.parseLong(m.group(1)) < pixels * 80);
+            } finally {
+                new File("test.png").delete();
+                new File("test.json").delete();
+            }
+        }
+    }
+
+    @Test
+    public void testMandelMetricsIterations() throws IOException {
+        try {
+            // The main cardioid, whose points are found without any iteration
+            call("-f test.png -set mandelbrot -area \"-0.2;0;0.1\" -resolution 100 -iter 5000 -metrics test.json");
+            String json = new String(Files.readAllBytes(new File("test.json").toPath()), "UTF-8");
+            assertTrue(json.contains("\"totalIterations\": 0,"));
+            assertTrue(json.contains("\"inSet\": 400}"));
+        } finally {
+            new File("test.png").delete();
+            new File("test.json").delete();
+        }
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        try {
+            String jobs = "# Two plots and an error\n"
+                          + "-f test.png -set mandelbrot -resolution 10\n"
+                          + "\n"
+                          + "{\"f\": \"test2.png\", \"set\": \"julia\", \"param\": \"-0.4;0.6\", \"resolution\": 10,"
+                          + " \"strategy\": \"subdivide\"}\n"
+                          + "-f test3.png -set nope\n";
+            Files.write(new File("test.jobs").toPath(), jobs.getBytes("UTF-8"));
+            call("-batch test.jobs -jobs 2 -j 2");
+            assertImageEquals("test.png", "expected_test_mandel.png");
+            assertImageEquals("test2.png", "expected_test_julia.png");
+            assertOutContains("line 2: Result saved in test.png");
+            assertOutContains("line 4: Result saved in test2.png");
+            assertErrContains("line 5: Unrecognized set 'nope'!");
+            assertOutContains("3 jobs done, 1 failed");
+        } finally {
+            new File("test.jobs").delete();
+            new File("test.png").delete();
+            new File("test2.png").delete();
+        }
+    }
+
+    @Test
+    public void testBatchAnimation() throws IOException {
+        try {
+            // Frames are computed in the pool of the batch, which must outlive each job
+            String jobs = "-f test.png -set mandelbrot -resolution 10 -frames 2 -zoom 2\n"
+                          + "-f test2.png -set mandelbrot -resolution 10 -frames 2 -zoom 2\n";
+            Files.write(new File("test.jobs").toPath(), jobs.getBytes("UTF-8"));
+            call("-batch test.jobs -jobs 1 -j 2");
+            assertImageEquals("test_0000.png", "expected_test_mandel.png");
+            assertImageEquals("test2_0000.png", "expected_test_mandel.png");
+            assertTrue(new File("test2_0001.png").exists());
+            assertOutContains("2 jobs done, 0 failed");
+        } finally {
+            new File("test.jobs").delete();
+            for (int k = 0; k < 2; k++) {
+                new File(String.format("test_%04d.png", k)).delete();
+                new File(String.format("test2_%04d.png", k)).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidBatch() throws IOException {
+        try {
+            Files.write(new File("test.jobs").toPath(), "-f test.png -area \"1;2\n".getBytes("UTF-8"));
+            call("-batch test.jobs");
+            assertErrContains("line 1: Unbalanced quotes!");
+        } finally {
+            new File("test.jobs").delete();
+        }
+    }
+
+    @Test
+    public void testInvalidZoom() throws IOException {
+        call("-frames 3 -zoom 0");
+        assertErrContains("could not parse supplied value for 'zoom'");
+    }
+
+    @Test
+    public void testInvalidOutput() throws IOException {
+        call("-f no_such_dir/test.png -resolution 10");
+        assertErrContains("could not generate image file");
+    }
+
     @Test
     public void testHelp() throws IOException {
         call("-h");
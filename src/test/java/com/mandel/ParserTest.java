@@ -8,6 +8,11 @@ import org.junit.Test;
 import com.mandel.complex.Complex;
 import com.mandel.parser.AST;
 import com.mandel.parser.BaseNode;
+import com.mandel.parser.CompiledFormula;
+import com.mandel.parser.FormulaCompiler;
+import com.mandel.parser.Optimizer;
+import com.mandel.parser.Program;
+import com.mandel.parser.VariableNode;
 
 
 public class ParserTest {
@@ -66,6 +71,122 @@ public class ParserTest {
         assertEquals(new Complex(9, -10./3), root.compute(context));
     }
 
+    private static void assertCompiledEquals(String formula, Complex z, Complex c) {
+        BaseNode root = AST.parse(formula).reduce();
+        TreeMap<String,Complex> context = new TreeMap<String,Complex>();
+        context.put("z", z);
+        context.put("c", c);
+        CompiledFormula[] formulas = {FormulaCompiler.compile(root, "z", "c"),
+                                      Program.compile(root, "z", "c")};
+        for (CompiledFormula compiled: formulas) {
+            double[] out = compiled.newBuffer();
+            compiled.apply(z.real(), z.imag(), c.real(), c.imag(), out);
+            assertEquals(root.compute(context), new Complex(out[0], out[1]));
+        }
+    }
+
+    @Test
+    public void testCompiled1() {
+        assertCompiledEquals("-i*c*z^5+1+i", new Complex(0.3, -0.2), new Complex(0.1, 0.4));
+    }
+
+    @Test
+    public void testCompiled2() {
+        assertCompiledEquals("(z-c)/(1.5*z+c)-e^z", new Complex(1.1, 0.2), new Complex(-0.7, 2));
+    }
+
+    @Test
+    public void testCompiled3() {
+        assertCompiledEquals("z^c+3!", new Complex(1.1, 0.2), new Complex(3, 0));
+    }
+
+    @Test
+    public void testCompiled4() {
+        assertCompiledEquals("c", new Complex(1.1, 0.2), new Complex(3, 0));
+    }
+
+    @Test
+    public void testCompiled5() {
+        assertCompiledEquals("c*(z+1)!", new Complex(4, 0), new Complex(0.5, -1));
+    }
+
+    @Test(expected = Complex.IllegalOperation.class)
+    public void testCompiledFactorial() {
+        CompiledFormula compiled = FormulaCompiler.compile(AST.parse("z!").reduce(), "z", "c");
+        compiled.apply(1.5, 0, 0, 0, compiled.newBuffer());
+    }
+
+    @Test(expected = VariableNode.UndefinedReference.class)
+    public void testCompiledUndefined() {
+        FormulaCompiler.compile(AST.parse("z+y").reduce(), "z", "c");
+    }
+
+    @Test(expected = VariableNode.UndefinedReference.class)
+    public void testProgramUndefined() {
+        Program.compile(AST.parse("z+y").reduce(), "z", "c");
+    }
+
+    private static void assertOptimizedEquals(String formula, Complex z, Complex c) {
+        BaseNode root = AST.parse(formula).reduce();
+        TreeMap<String,Complex> context = new TreeMap<String,Complex>();
+        context.put("z", z);
+        context.put("c", c);
+        BaseNode optimized = Optimizer.optimize(root);
+        assertEquals(root.compute(context), optimized.compute(context));
+
+        // Compiled formulas must also be unchanged
+        CompiledFormula reference = FormulaCompiler.compile(root, "z", "c");
+        double[] expected = reference.newBuffer();
+        reference.apply(z.real(), z.imag(), c.real(), c.imag(), expected);
+        CompiledFormula[] formulas = {FormulaCompiler.compile(optimized, "z", "c"),
+                                      Program.compile(optimized, "z", "c")};
+        for (CompiledFormula compiled: formulas) {
+            double[] out = compiled.newBuffer();
+            compiled.apply(z.real(), z.imag(), c.real(), c.imag(), out);
+            assertEquals(new Complex(expected[0], expected[1]), new Complex(out[0], out[1]));
+        }
+    }
+
+    @Test
+    public void testOptimized1() {
+        assertOptimizedEquals("1*z*z+0+(c)-(-z)", new Complex(2, -1), new Complex(3, 5));
+    }
+
+    @Test
+    public void testOptimized2() {
+        assertOptimizedEquals("z^5+z^2*z^3-(z+1)+i-z/1", new Complex(1, 2), new Complex(0, 0));
+    }
+
+    @Test
+    public void testOptimized3() {
+        assertOptimizedEquals("-(-(c*z))*2-3*c*z", new Complex(1, 2), new Complex(-3, 1));
+    }
+
+    @Test
+    public void testOptimizedExact() {
+        // Rewrites must be exact, which integer values would not show
+        assertOptimizedEquals("z/3+c", new Complex(0.45, 0.44), new Complex(-0.1, -0.15));
+        assertOptimizedEquals("(z+0.1)+0.2", new Complex(-0.21, 0.01), new Complex(-0.38, 0.27));
+        assertOptimizedEquals("(c*0.3)*0.7+z^5", new Complex(0.47, -0.49), new Complex(0.46, 0.44));
+        assertOptimizedEquals("z^7+z/0.25-z^3/8", new Complex(0.23, -0.09), new Complex(-0.29, -0.17));
+    }
+
+    @Test(expected = Complex.IllegalOperation.class)
+    public void testOptimizedError() {
+        // Multiplying by 0 must not hide errors raised by the other operand
+        TreeMap<String,Complex> context = new TreeMap<String,Complex>();
+        context.put("z", new Complex(0, 0));
+        context.put("c", new Complex(0.0625, 0));
+        Optimizer.optimize(AST.parse("z^2+c+0*(1/(c-0.0625))").reduce()).compute(context);
+    }
+
+    @Test(expected = Complex.IllegalOperation.class)
+    public void testOptimizedCompiledError() {
+        BaseNode optimized = Optimizer.optimize(AST.parse("z^2+c+0*(1/(c-0.0625))").reduce());
+        CompiledFormula compiled = FormulaCompiler.compile(optimized, "z", "c");
+        compiled.apply(0, 0, 0.0625, 0, compiled.newBuffer());
+    }
+
     @Test(expected = AST.InvalidFormula.class)
     public void testMissingOperand() {
         AST.parse("1+3+");
@@ -0,0 +1,98 @@
+package com.mandel.tests;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.mandel.complex.DoubleDoubleComplex;
+import com.mandel.sets.BaseSet;
+import com.mandel.sets.MandelbrotSet;
+import com.mandel.sets.PerturbationSet;
+import com.mandel.sets.SetBuilder;
+
+
+public class PrecisionTest {
+
+    @Test
+    public void testDoubleDoubleSquare() {
+        // (1 + 2^-60)^2 - 1 = 2^-59 + 2^-120, lost in double precision
+        DoubleDoubleComplex z = new DoubleDoubleComplex(1, Math.scalb(1., -60), 0, 0);
+        z.square().add(-1, 0);
+        assertEquals(Math.scalb(1., -59), z.real(), 0);
+        assertEquals(0, z.imag(), 0);
+    }
+
+    @Test
+    public void testDoubleDoubleIterations() {
+        MathContext context = new MathContext(60);
+        BigDecimal cx = new BigDecimal("-0.1234567890123456789012345678"),
+                   cy = new BigDecimal("0.6543210987654321098765432109");
+        BigDecimal x = BigDecimal.ZERO, y = BigDecimal.ZERO;
+        DoubleDoubleComplex c = new DoubleDoubleComplex(cx, cy), z = new DoubleDoubleComplex(0, 0, 0, 0);
+        for (int i = 0; i < 20; i++) {
+            BigDecimal tmp = x.multiply(x, context).subtract(y.multiply(y, context), context).add(cx, context);
+            y = x.multiply(y, context).multiply(new BigDecimal(2), context).add(cy, context);
+            x = tmp;
+            z.square().add(c);
+        }
+        // Subtract the exact value from z, keeping the low parts of both
+        z.add(new DoubleDoubleComplex(x.negate(), y.negate()));
+        assertEquals(0, z.real(), 1e-28);
+        assertEquals(0, z.imag(), 1e-28);
+    }
+
+    @Test
+    public void testDoubleDoubleSet() {
+        // Coordinates of pixels are exact in double precision, which is
+        // enough at such a zoom: both sets must then agree on every pixel
+        double x = -0.75, y = 0.125, radius = 0.0625;
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 1000);
+        BaseSet extended = ((MandelbrotSet)set).extended(new BigDecimal(x), new BigDecimal(y));
+        int escaped = 0;
+        for (int i = 0; i < 64; i++) {
+            for (int j = 0; j < 64; j++) {
+                double dx = -radius + j * radius / 32, dy = -radius + i * radius / 32;
+                float expected = set.contains(x + dx, y + dy);
+                assertEquals(expected, extended.contains(dx, dy), 0);
+                escaped += (expected < 1.f) ? 1 : 0;
+            }
+        }
+        assertTrue(escaped > 0 && escaped < 64 * 64);
+    }
+
+    private static void assertPerturbationAgrees(double bailout) {
+        // Deep enough for many iterations, but within reach of double-double
+        BigDecimal x = new BigDecimal("-0.743643887037158704752191506114774"),
+                   y = new BigDecimal("0.131825904205311970493132056385139");
+        double radius = 1e-20;
+        int iterations = 100000;
+        MandelbrotSet set = (MandelbrotSet)SetBuilder.build("mandelbrot", "", "", iterations);
+        set.setBailout(bailout);
+        BaseSet extended = set.extended(x, y);
+        PerturbationSet perturbed = set.perturbed(x, y, radius / 4);
+        int escaped = 0;
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                double dx = -radius + j * radius / 4, dy = -radius + i * radius / 4;
+                float expected = extended.contains(dx, dy);
+                // Both orbits are rounded differently, allow for a couple of iterations
+                assertEquals(expected, perturbed.contains(dx, dy), 2.f / iterations);
+                escaped += (expected < 1.f) ? 1 : 0;
+            }
+        }
+        assertTrue(escaped > 32);
+    }
+
+    @Test
+    public void testPerturbation() {
+        assertPerturbationAgrees(2);
+    }
+
+    @Test
+    public void testPerturbationBailout() {
+        assertPerturbationAgrees(1000);
+    }
+}
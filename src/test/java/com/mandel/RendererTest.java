@@ -0,0 +1,125 @@
+package com.mandel.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.colorizer.ColorizerBuilder;
+import com.mandel.plotter.PlotArea;
+import com.mandel.plotter.Renderer;
+import com.mandel.sets.BaseSet;
+import com.mandel.sets.SetBuilder;
+
+
+public class RendererTest {
+
+    private Renderer renderer;
+    private final Colorizer colorizer = ColorizerBuilder.parse("#000000..#ffffff");
+
+    @Before
+    public void setUp() {
+        renderer = new Renderer(2);
+    }
+
+    @After
+    public void tearDown() {
+        renderer.close();
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 80);
+        Renderer.Result result = renderer.submit(set, set.getDefaultArea(), colorizer, 30, 20, 0, 0).get();
+        assertTrue(result.isComplete());
+        for (float val: result.getValues()) {
+            assertFalse(Float.isNaN(val));
+        }
+        try {
+            ImageIO.write(result.getImage(), "png", new File("test.png"));
+            MandelTest.assertImageEquals("test.png", "expected_test_mandel.png");
+        } finally {
+            new File("test.png").delete();
+        }
+    }
+
+    @Test
+    public void testIterationBudget() throws Exception {
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 1000);
+        Renderer.Result result = renderer.submit(set, set.getDefaultArea(), colorizer, 300, 200, 0, 1000).get();
+        assertFalse(result.isComplete());
+        int computed = 0;
+        for (float val: result.getValues()) {
+            computed += Float.isNaN(val) ? 0 : 1;
+        }
+        assertTrue(computed > 0);
+        assertTrue(computed < 300 * 200);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 1000000);
+        set.setPeriodicity(0);
+        PlotArea area = PlotArea.parse("-0.5;0;0.5");
+        long startedAt = System.currentTimeMillis();
+        Renderer.Result result = renderer.submit(set, area, colorizer, 1000, 1000, 100, 0).get(10, TimeUnit.SECONDS);
+        assertFalse(result.isComplete());
+        assertTrue(System.currentTimeMillis() - startedAt < 5000);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 1000000);
+        set.setPeriodicity(0);
+        Renderer.Render render = renderer.submit(set, PlotArea.parse("-0.5;0;0.5"), colorizer, 1000, 1000, 0, 0);
+        assertTrue(render.cancel(true));
+        assertTrue(render.isCancelled());
+        try {
+            render.get();
+            fail("A cancelled render has no result");
+        } catch (CancellationException e) {
+            // Expected
+        }
+        // The renderer is still usable
+        BaseSet other = SetBuilder.build("mandelbrot", "", "", 80);
+        assertTrue(renderer.submit(other, other.getDefaultArea(), colorizer, 30, 20, 0, 0).get().isComplete());
+    }
+
+    @Test
+    public void testException() throws Exception {
+        final BaseSet base = SetBuilder.build("mandelbrot", "", "", 80);
+        BaseSet set = new BaseSet() {
+            @Override
+            public String toString() {
+                return "Broken set";
+            }
+
+            @Override
+            public PlotArea getDefaultArea() {
+                return base.getDefaultArea();
+            }
+
+            @Override
+            public float contains(double x, double y) {
+                throw new IllegalStateException("Broken set!");
+            }
+        };
+        try {
+            renderer.submit(set, set.getDefaultArea(), colorizer, 30, 20, 0, 0).get();
+            fail("The render should have failed");
+        } catch (ExecutionException e) {
+            assertEquals("Broken set!", e.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.mandel.tests;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mandel.colorizer.Colorizer;
+import com.mandel.colorizer.ColorizerBuilder;
+import com.mandel.plotter.TileCache;
+import com.mandel.plotter.TileRenderer;
+import com.mandel.plotter.TileServer;
+import com.mandel.sets.BaseSet;
+import com.mandel.sets.SetBuilder;
+
+
+public class TileTest {
+
+    private ForkJoinPool pool;
+    private final Colorizer colorizer = ColorizerBuilder.parse("#000000..#ffffff");
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private TileRenderer renderer(TileCache cache) {
+        BaseSet set = SetBuilder.build("mandelbrot", "", "", 50);
+        return new TileRenderer(set, TileRenderer.key("mandelbrot", "", "", set), cache, pool);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testMemoryCache() {
+        TileCache cache = new TileCache(null, 1 << 20);
+        TileRenderer renderer = renderer(cache);
+        int[] first = renderer.render(1, 1, 0, colorizer);
+        assertEquals(0, cache.getHits());
+        int[] second = renderer.render(1, 1, 0, colorizer);
+        assertEquals(1, cache.getHits());
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void testDiskCache() throws IOException {
+        File dir = new File("test_tiles");
+        try {
+            int[] first = renderer(new TileCache(dir, 1 << 20)).render(2, 1, 2, colorizer);
+            // Another cache, as after a restart
+            TileCache cache = new TileCache(dir, 1 << 20);
+            TileRenderer renderer = renderer(cache);
+            assertNotNull(cache.get(renderer.getKey(), 2, 1, 2));
+            assertArrayEquals(first, renderer.render(2, 1, 2, colorizer));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        // Room for a single tile
+        TileCache cache = new TileCache(null, 4 * TileRenderer.SIZE * TileRenderer.SIZE);
+        TileRenderer renderer = renderer(cache);
+        renderer.render(1, 0, 0, colorizer);
+        renderer.render(1, 0, 1, colorizer);
+        assertNull(cache.get(renderer.getKey(), 1, 0, 0));
+        assertNotNull(cache.get(renderer.getKey(), 1, 0, 1));
+    }
+
+    @Test
+    public void testParentReuse() {
+        TileRenderer renderer = renderer(new TileCache(null, 1 << 20));
+        renderer.render(0, 0, 0, colorizer);
+        int[] child = renderer.render(1, 1, 1, colorizer);
+        assertEquals(TileRenderer.SIZE * TileRenderer.SIZE / 4, renderer.getReused());
+        // Same as without the parent
+        assertArrayEquals(renderer(new TileCache(null, 1 << 20)).render(1, 1, 1, colorizer), child);
+    }
+
+    @Test
+    public void testKey() {
+        BaseSet set = SetBuilder.build("julia", "", "", 50);
+        // Reduced transformation trees are compared
+        assertEquals(TileRenderer.key("julia", "(1+1)*z^2+c", "-0.4;0.6", set),
+                     TileRenderer.key("Julia", "2*z^2 + c", "-0.40;0.6", set));
+        assertNotEquals(TileRenderer.key("julia", "z^2+c", "-0.4;0.6", set),
+                        TileRenderer.key("julia", "z^2+c", "-0.4;0.61", set));
+    }
+
+    @Test(expected = TileRenderer.InvalidTile.class)
+    public void testInvalidTile() {
+        renderer(new TileCache(null, 1 << 20)).render(1, 2, 0, colorizer);
+    }
+
+    @Test
+    public void testServer() throws IOException {
+        TileServer server = new TileServer(0, 2, new TileCache(null, 1 << 20), 6);
+        server.setDefaults("", "", 50, "#000000..#ffffff");
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            HttpURLConnection connection = (HttpURLConnection)new URL(base + "/mandelbrot/1/0/1.png").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("image/png", connection.getContentType());
+            BufferedImage img = ImageIO.read(connection.getInputStream());
+            int[] expected = renderer(new TileCache(null, 1 << 20)).render(1, 0, 1, colorizer);
+            for (int i = 0; i < TileRenderer.SIZE; i++) {
+                for (int j = 0; j < TileRenderer.SIZE; j++) {
+                    assertEquals(expected[i * TileRenderer.SIZE + j] & 0xffffff, img.getRGB(j, i) & 0xffffff);
+                }
+            }
+
+            connection = (HttpURLConnection)new URL(base + "/mandelbrot/1/2/0.png").openConnection();
+            assertEquals(400, connection.getResponseCode());
+            connection = (HttpURLConnection)new URL(base + "/mandelbrot/tile.png").openConnection();
+            assertEquals(404, connection.getResponseCode());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testServerIterations() throws IOException {
+        TileServer server = new TileServer(0, 2, new TileCache(null, 1 << 20), 6);
+        server.setDefaults("", "", 50, "#000000..#ffffff");
+        server.setMaxIterations(100);
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getPort() + "/mandelbrot/0/0/0.png?iter=";
+            for (String iter: new String[] {"20", "100"}) {
+                HttpURLConnection connection = (HttpURLConnection)new URL(base + iter).openConnection();
+                assertEquals(200, connection.getResponseCode());
+            }
+            for (String iter: new String[] {"0", "-5", "101", "2147483647", "many"}) {
+                HttpURLConnection connection = (HttpURLConnection)new URL(base + iter).openConnection();
+                assertEquals(400, connection.getResponseCode());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.mandel.sets;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+* VectorKernel -- EscapeKernel iterating as many points as there are SIMD lanes in lockstep.
+*
+* Needs the jdk.incubator.vector module, which is only available with
+* java --add-modules jdk.incubator.vector (Java 16 and above). BaseSet
+* falls back to the scalar loop otherwise.
+*
+* Lanes are masked out as their point escapes or is found periodic, the
+* vector being done once no lane is active. Operations are carried out
+* in the same order as in BaseSet.escapeQuadratic, so that the results are
+* exactly the same.
+*/
+class VectorKernel implements EscapeKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void mandelbrot(BaseSet set, double[] x, double y, int n, float[] out) {
+        this.escape(set, x, y, true, 0, y, n, out);
+    }
+
+    @Override
+    public void julia(BaseSet set, double[] x, double y, double cx, double cy, int n, float[] out) {
+        this.escape(set, x, y, false, cx, cy, n, out);
+    }
+
+    /**
+     * Iterate from z_0 = x[k] + iy with c = cx + icy, or c = z_0 for the Mandelbrot set.
+     */
+    private void escape(BaseSet set, double[] x, double y, boolean mandelbrot, double cx, double cy, int n,
+                        float[] out) {
+        final int lanes = SPECIES.length(), iterations = set.iterations;
+        final double tolerance = set.periodicity, bound = set.bound;
+        final boolean periodic = tolerance > 0, counting = set.counting;
+        boolean[] todo = new boolean[lanes];
+        double[] counts = new double[lanes], norms = new double[lanes], done = new double[lanes];
+
+        for (int k = 0; k < n; k += lanes) {
+            for (int l = 0; l < lanes; l++) {
+                todo[l] = k + l < n && Float.isNaN(out[k + l]);
+            }
+            VectorMask<Double> active = VectorMask.fromArray(SPECIES, todo, 0);
+            if (!active.anyTrue()) {
+                continue;
+            }
+
+            DoubleVector zx = DoubleVector.fromArray(SPECIES, x, k, SPECIES.indexInRange(k, n));
+            DoubleVector zy = DoubleVector.broadcast(SPECIES, y);
+            // Vectors are blended rather than picked by a branch, which would keep them out of registers
+            DoubleVector cxs = DoubleVector.broadcast(SPECIES, cx).blend(zx, SPECIES.maskAll(mandelbrot));
+            DoubleVector cys = DoubleVector.broadcast(SPECIES, cy);
+            DoubleVector px = zx, py = zy, tmp, x2, y2, norm;
+            // Escape iteration of each lane, -1 while it has not escaped, and |z|^2 at that point
+            DoubleVector count = DoubleVector.broadcast(SPECIES, -1), escapeNorm = DoubleVector.zero(SPECIES);
+            // Iterations carried out by lanes found in the set, when counting them
+            DoubleVector cycleAt = DoubleVector.broadcast(SPECIES, iterations);
+            int steps = 0, period = 1;
+
+            for (int i = 0; i < iterations && active.anyTrue(); ++i) {
+                x2 = zx.mul(zx);
+                y2 = zy.mul(zy);
+                norm = x2.add(y2);
+                VectorMask<Double> escaped = norm.compare(VectorOperators.GT, bound).and(active);
+                count = count.blend(i, escaped);
+                escapeNorm = escapeNorm.blend(norm, escaped);
+                active = active.andNot(escaped);
+                tmp = cxs.add(x2.sub(y2));
+                zy = cys.add(zx.mul(zy).add(zy.mul(zx)));
+                zx = tmp;
+                if (periodic) {
+                    VectorMask<Double> cycle = zx.sub(px).abs().compare(VectorOperators.LT, tolerance)
+                                                 .and(zy.sub(py).abs().compare(VectorOperators.LT, tolerance));
+                    if (counting) {
+                        cycleAt = cycleAt.blend(i + 1, cycle.and(active));
+                    }
+                    active = active.andNot(cycle);
+                    VectorMask<Double> save = SPECIES.maskAll(++steps == period);
+                    px = px.blend(zx, save);
+                    py = py.blend(zy, save);
+                    if (steps == period) {
+                        steps = 0;
+                        period <<= 1;
+                    }
+                }
+            }
+
+            count.intoArray(counts, 0);
+            escapeNorm.intoArray(norms, 0);
+            if (counting) {
+                cycleAt.intoArray(done, 0);
+            }
+            for (int l = 0; l < lanes; l++) {
+                if (todo[l]) {
+                    out[k + l] = (counts[l] >= 0) ? set.escaped((int)counts[l], norms[l])
+                                 : counting ? set.inSet((int)done[l]) : 1.f;
+                }
+            }
+        }
+    }
+}